@@ -1,6 +1,5 @@
 package com.example.permissionhelper.example;
 
-import android.Manifest;
 import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
@@ -20,6 +19,7 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.permissionhelper.R;
+import com.example.permissionhelper.helper.ManifestPermissions;
 import com.example.permissionhelper.helper.PermissionHelper;
 import com.example.permissionhelper.helper.PermissionUtil;
 import com.example.permissionhelper.helper.exception.PermissionNotDefined;
@@ -33,15 +33,15 @@ import java.util.List;
 public class MainActivity extends AppCompatActivity implements PermissionHelper.RationaleCallback, PermissionHelper.BaseResultCallBack {
     public static final String TAG = MainActivity.class.getSimpleName();
     private static final List<String> PERMISSIONS = Arrays.asList(
-            Manifest.permission.ACCESS_COARSE_LOCATION,
-            Manifest.permission.ACCESS_FINE_LOCATION,
-            Manifest.permission.BODY_SENSORS,
-            Manifest.permission.CAMERA,
-            Manifest.permission.READ_CALENDAR,
-            Manifest.permission.READ_CONTACTS,
-            Manifest.permission.READ_EXTERNAL_STORAGE,
-            Manifest.permission.WRITE_EXTERNAL_STORAGE,
-            Manifest.permission.RECORD_AUDIO);
+            ManifestPermissions.ACCESS_COARSE_LOCATION,
+            ManifestPermissions.ACCESS_FINE_LOCATION,
+            ManifestPermissions.BODY_SENSORS,
+            ManifestPermissions.CAMERA,
+            ManifestPermissions.READ_CALENDAR,
+            ManifestPermissions.READ_CONTACTS,
+            ManifestPermissions.READ_EXTERNAL_STORAGE,
+            ManifestPermissions.WRITE_EXTERNAL_STORAGE,
+            ManifestPermissions.RECORD_AUDIO);
     private static final int REQUEST_CODE_1 = 1;
     private static final int REQUEST_CODE_2 = 2;
 
@@ -65,6 +65,7 @@ public class MainActivity extends AppCompatActivity implements PermissionHelper.
                 .result(this)
                 .rational(this)
                 .explain()
+                .debounce(500)
                 .build();
         mButton = findViewById(R.id.button);
         mButton.setOnClickListener((v) -> {
@@ -75,9 +76,25 @@ public class MainActivity extends AppCompatActivity implements PermissionHelper.
                 Log.e(TAG, e.getMessage());
             }
         });
+        try {
+            helper.prewarm(PERMISSIONS);
+        } catch (PermissionNotDefined e) {
+            Log.e(TAG, e.getMessage());
+        }
+        findViewById(R.id.button2).setOnClickListener((v) -> {
+            try {
+                // Overlay screen opens when user comes back from write settings screen
+                helper.requestSpecialPermissions(REQUEST_CODE_2, new int[]{PermissionHelper.TYPE_WRITE_SETTINGS,
+                        PermissionHelper.TYPE_DRAW_OVERLAYS}, result -> Toast.makeText(this,
+                        "Granted: " + result.getGranted(), Toast.LENGTH_SHORT).show());
+            } catch (PermissionNotDefined e) {
+                Log.e(TAG, e.getMessage());
+            }
+        });
         findViewById(R.id.button1).setOnClickListener((v) ->
                 Toast.makeText(this, "Clicked", Toast.LENGTH_SHORT).show()
         );
+        PermissionUtil.prefetchGroupNames();
         Log.d(TAG, "onCreate");
     }
 
@@ -141,9 +158,19 @@ public class MainActivity extends AppCompatActivity implements PermissionHelper.
     }
 
     void showInfoDialog(List<String> permissions, final boolean isOpenSetting) {
-        if (permissions.size() == 0) return;
-        ArraySet<CharSequence> set = PermissionUtil.getPermissionsGroupName(permissions);
-        if (set.size() == 0) return;
+        if (permissions.size() == 0) {
+            if (!isOpenSetting) answerRationale(false);
+            return;
+        }
+        PermissionUtil.getPermissionsGroupNameAsync(permissions, set -> showInfoDialog(set, isOpenSetting));
+    }
+
+    void showInfoDialog(@NonNull ArraySet<CharSequence> set, final boolean isOpenSetting) {
+        if (set.size() == 0 || isFinishing()) {
+            // Rationale must always be answered, otherwise the request waits for it
+            if (!isOpenSetting) answerRationale(false);
+            return;
+        }
         StringBuilder builder = new StringBuilder(!isOpenSetting ?
                 "We need these permissions: \n"
                 : "We can't request flowing permission again, cause you had choose Never ask again.\n" +
@@ -158,26 +185,29 @@ public class MainActivity extends AppCompatActivity implements PermissionHelper.
                 .setPositiveButton("OK", (dialog, which) -> {
                     dialog.dismiss();
                     if (isOpenSetting) {
-                        PermissionUtil.openAppDetailsSettings(this, 111);
-                    } else {
-                        if (mPermissionPredicate != null) {
-                            mPermissionPredicate.continues(mRequestCode, true);
-                            mPermissionPredicate = null;
+                        if (!helper.openAppDetailsSettings(mRequestCode)) {
+                            PermissionUtil.openAppDetailsSettings(this, 111);
                         }
+                    } else {
+                        answerRationale(true);
                     }
                 })
                 .setNegativeButton("Cancel", (dialog, which) -> {
                     dialog.dismiss();
-                    if (isOpenSetting && mPermissionPredicate != null) {
-                        mPermissionPredicate.continues(mRequestCode, false);
-                        mPermissionPredicate = null;
-                    }
+                    if (!isOpenSetting) answerRationale(false);
                 })
-                .setCancelable(true)
+                .setCancelable(isOpenSetting)
                 .create();
         alertDialog.show();
     }
 
+    private void answerRationale(boolean continues) {
+        if (mPermissionPredicate != null) {
+            mPermissionPredicate.continues(mRequestCode, continues);
+            mPermissionPredicate = null;
+        }
+    }
+
     public static class Adapter extends RecyclerView.Adapter<Adapter.MViewHolder> {
         List<Data> dataSet;
 
@@ -0,0 +1,54 @@
+package com.example.permissionhelper.helper;
+
+import android.app.Activity;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * {@link PermissionChecker} backed by an activity, grant state goes through {@link GrantStateCache}.
+ * Everything is granted before M. Denied forever comes from {@link DenialHistory}.
+ */
+final class ActivityPermissionChecker implements PermissionChecker {
+    @NonNull
+    private final WeakReference<Activity> mActivity;
+
+    ActivityPermissionChecker(@NonNull Activity activity) {
+        mActivity = new WeakReference<>(activity);
+    }
+
+    @Override
+    public boolean isGranted(@NonNull String permission) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return true;
+        Activity activity = mActivity.get();
+        return PermissionUtil.isPermissionGranted(activity != null ? activity : App.context(), permission);
+    }
+
+    @Override
+    public boolean shouldShowRationale(@NonNull String permission) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return false;
+        Activity activity = mActivity.get();
+        return activity != null && PermissionUtil.shouldRationale(activity, permission);
+    }
+
+    @NonNull
+    @Override
+    public GrantSnapshot check(@NonNull String[] permissions, boolean rationale) {
+        return PermissionUtil.checkPermissions(rationale ? mActivity.get() : null, Arrays.asList(permissions));
+    }
+
+    @Override
+    public boolean isSpecialGranted(int type) {
+        SpecialPermission special = SpecialPermission.get(type);
+        return special != null && special.isGranted();
+    }
+
+    @Override
+    public boolean isDeniedForever(@NonNull String permission) {
+        DenialHistory history = PermissionUtil.getDenialHistory();
+        return history.isEnabled() && history.isDeniedForever(permission);
+    }
+}
@@ -0,0 +1,251 @@
+package com.example.permissionhelper.helper;
+
+import android.app.Activity;
+import android.os.Build;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+/**
+ * System requests of all helpers of one activity. Platform shows one permission dialog at a time and
+ * rejects another request while one is showing, so a request of a helper waits while a request of another
+ * helper is running. Permissions answered by the running dialog are answered for waiting requests too,
+ * only the others are asked after it. A waiting request of a setting screen shares the answer of the same
+ * screen.
+ */
+@MainThread
+final class ActivityRequests {
+    private static final Map<Activity, ActivityRequests> REQUESTS = new WeakHashMap<>();
+
+    @Nullable
+    private Entry mRunning;
+    private final ArrayDeque<Entry> mWaiting = new ArrayDeque<>();
+
+    private ActivityRequests() {
+    }
+
+    @NonNull
+    static ActivityRequests of(@NonNull Activity activity) {
+        ActivityRequests requests = REQUESTS.get(activity);
+        if (requests == null) {
+            requests = new ActivityRequests();
+            REQUESTS.put(activity, requests);
+        }
+        return requests;
+    }
+
+    /**
+     * Start request of {@code helper} now, or after the running request of this activity
+     *
+     * @return false if request could not be started
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    boolean start(@NonNull PermissionHelper helper, @NonNull RequestState state) {
+        Entry entry = new Entry(helper, state);
+        if (mRunning != null) {
+            mWaiting.add(entry);
+            return true;
+        }
+        return startNow(entry);
+    }
+
+    /**
+     * Drop waiting requests of {@code helper}, its running request still finishes to start next ones
+     */
+    void remove(@NonNull PermissionHelper helper) {
+        Iterator<Entry> iterator = mWaiting.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().helper == helper) iterator.remove();
+        }
+    }
+
+    /**
+     * Give runtime result of {@code state} to its helper and waiting requests which it answers
+     */
+    static void onRuntimeResult(@NonNull RequestState state, @NonNull String[] permissions,
+                                @NonNull int[] grantResults) {
+        ActivityRequests requests = findRunning(state);
+        if (requests != null) requests.finishRuntime(permissions, grantResults);
+    }
+
+    /**
+     * Give special result of {@code state} to its helper and waiting requests of same screen
+     */
+    static void onSpecialResult(@NonNull RequestState state) {
+        ActivityRequests requests = findRunning(state);
+        if (requests != null) requests.finishSpecial();
+    }
+
+    private void finishRuntime(@NonNull String[] permissions, @NonNull int[] grantResults) {
+        Entry running = Objects.requireNonNull(mRunning);
+        mRunning = null;
+        PermissionHelper helper = take(running.state.handle);
+        running.answer(permissions, grantResults);
+
+        List<Entry> answered = null;
+        Iterator<Entry> iterator = mWaiting.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.state.type != PermissionHelper.TYPE_RUNTIME) continue;
+            if (entry.answer(permissions, grantResults)) {
+                iterator.remove();
+                if (answered == null) answered = new ArrayList<>();
+                answered.add(entry);
+            }
+        }
+        // Start next one first, callbacks may request again
+        startNext();
+        if (helper != null) running.deliver(helper);
+        if (answered != null) {
+            for (Entry entry : answered) {
+                entry.deliver(entry.helper);
+            }
+        }
+    }
+
+    private void finishSpecial() {
+        Entry running = Objects.requireNonNull(mRunning);
+        mRunning = null;
+        PermissionHelper helper = take(running.state.handle);
+
+        List<Entry> answered = null;
+        Iterator<Entry> iterator = mWaiting.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.state.type != running.state.type) continue;
+            iterator.remove();
+            if (answered == null) answered = new ArrayList<>();
+            answered.add(entry);
+        }
+        startNext();
+        if (helper != null) helper.onSpecialAnswer(running.state.type);
+        if (answered != null) {
+            for (Entry entry : answered) {
+                entry.helper.onSpecialAnswer(entry.state.type);
+            }
+        }
+    }
+
+    private void startNext() {
+        while (mRunning == null && !mWaiting.isEmpty()) {
+            Entry entry = mWaiting.poll();
+            // Only requests started from M wait, so next one is started from M too
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && startNow(entry)) return;
+            // Could not ask now, finish with what is known so its helper is not blocked
+            if (entry.state.type == PermissionHelper.TYPE_RUNTIME) {
+                entry.deliver(entry.helper);
+            } else {
+                entry.helper.onSpecialAnswer(entry.state.type);
+            }
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private boolean startNow(@NonNull Entry entry) {
+        int handle = entry.helper.getHandle();
+        HelperRegistry.register(handle, entry.helper);
+        // Running before engine starts, a result may be given synchronously
+        mRunning = entry;
+        if (entry.helper.startEngine(entry.state)) return true;
+        if (mRunning == entry) mRunning = null;
+        HelperRegistry.unregister(handle);
+        return false;
+    }
+
+    @Nullable
+    private static ActivityRequests findRunning(@NonNull RequestState state) {
+        for (ActivityRequests requests : REQUESTS.values()) {
+            Entry running = requests.mRunning;
+            if (running != null
+                    && running.state.handle == state.handle
+                    && running.state.type == state.type
+                    && running.state.requestCode == state.requestCode) {
+                return requests;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return helper waiting for result of {@code handle}, it is removed from {@link HelperRegistry}
+     */
+    @Nullable
+    private static PermissionHelper take(int handle) {
+        PermissionHelper helper = HelperRegistry.get(handle);
+        if (helper != null) HelperRegistry.unregister(handle);
+        return helper;
+    }
+
+// Inner class ---------------------------------------------------------------------------------
+
+    private static final class Entry {
+        @NonNull
+        final PermissionHelper helper;
+        /**
+         * State to start, only permissions which were not answered yet
+         */
+        @NonNull
+        RequestState state;
+        /**
+         * Permissions answered so far, by requests of other helpers or own dialog
+         */
+        @NonNull
+        final String[] answered;
+        @NonNull
+        final int[] results;
+        int answeredCount;
+
+        Entry(@NonNull PermissionHelper helper, @NonNull RequestState state) {
+            this.helper = helper;
+            this.state = state;
+            answered = new String[state.permissions.length];
+            results = new int[state.permissions.length];
+        }
+
+        /**
+         * Take answers of own permissions from a result
+         *
+         * @return true if every permission is answered
+         */
+        boolean answer(@NonNull String[] permissions, @NonNull int[] grantResults) {
+            String[] remaining = new String[state.permissions.length];
+            int left = 0;
+            for (String p : state.permissions) {
+                int i = indexOf(permissions, p);
+                if (i >= 0) {
+                    answered[answeredCount] = p;
+                    results[answeredCount++] = grantResults[i];
+                } else {
+                    remaining[left++] = p;
+                }
+            }
+            if (left != state.permissions.length) {
+                state = new RequestState(state.handle, state.type, state.requestCode, Arrays.copyOf(remaining, left));
+            }
+            return left == 0;
+        }
+
+        void deliver(@NonNull PermissionHelper helper) {
+            helper.onRuntimeAnswer(state.requestCode, Arrays.copyOf(answered, answeredCount),
+                    Arrays.copyOf(results, answeredCount));
+        }
+
+        private static int indexOf(@NonNull String[] permissions, @NonNull String permission) {
+            for (int i = 0; i < permissions.length; i++) {
+                if (permission.equals(permissions[i])) return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.permissionhelper.helper;
+
+import android.content.Intent;
+import android.os.Build;
+
+import androidx.activity.result.ActivityResult;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.ActivityResultRegistry;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.fragment.app.FragmentActivity;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.Map;
+
+import static android.content.pm.PackageManager.PERMISSION_DENIED;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+/**
+ * Engine backed by Activity Result API. Launchers are registered when helper is built,
+ * so starting a request does not need any fragment transaction.
+ * A request running when activity is recreated is dropped, its helper is gone with the old activity.
+ */
+final class ActivityResultEngine implements PermissionEngine, LifecycleEventObserver {
+    @NonNull
+    private final ActivityResultLauncher<String[]> mPermissionsLauncher;
+    @NonNull
+    private final ActivityResultLauncher<Intent> mSettingLauncher;
+    /**
+     * Launchers registered after activity started are not bound to its lifecycle, they are unregistered by us
+     */
+    private final boolean mNeedUnregister;
+    private final int mHandle;
+    @Nullable
+    private FragmentActivity mActivity;
+    @Nullable
+    private RequestState mPending;
+    /**
+     * Helper was released while a request was running, launchers are kept until its result comes
+     */
+    private boolean mReleased;
+
+    ActivityResultEngine(@NonNull FragmentActivity activity, int handle) {
+        mActivity = activity;
+        mHandle = handle;
+        if (!activity.getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+            // Bound to activity lifecycle, registry unregisters them when activity is destroyed
+            mPermissionsLauncher = activity.registerForActivityResult(
+                    new ActivityResultContracts.RequestMultiplePermissions(), this::onPermissionsResult);
+            mSettingLauncher = activity.registerForActivityResult(
+                    new ActivityResultContracts.StartActivityForResult(), this::onSettingResult);
+            mNeedUnregister = false;
+        } else {
+            ActivityResultRegistry registry = activity.getActivityResultRegistry();
+            String key = "PermissionHelper#" + handle;
+            mPermissionsLauncher = registry.register(key + "#runtime",
+                    new ActivityResultContracts.RequestMultiplePermissions(), this::onPermissionsResult);
+            mSettingLauncher = registry.register(key + "#special",
+                    new ActivityResultContracts.StartActivityForResult(), this::onSettingResult);
+            mNeedUnregister = true;
+        }
+        activity.getLifecycle().addObserver(this);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    @Override
+    public boolean start(@NonNull RequestState state) {
+        if (mActivity == null || mReleased || mPending != null) return false;
+        if (state.type == PermissionHelper.TYPE_RUNTIME) {
+            mPending = state;
+            mPermissionsLauncher.launch(state.permissions);
+            return true;
+        }
+        Intent intent = PermissionUtil.getSpecialPermissionIntent(mActivity, state.type);
+        if (intent == null) return false;
+        mPending = state;
+        mSettingLauncher.launch(intent);
+        return true;
+    }
+
+    private void onPermissionsResult(@NonNull Map<String, Boolean> result) {
+        RequestState state = mPending;
+        mPending = null;
+        if (mReleased) unregister();
+        if (state == null) return;
+        String[] permissions = new String[result.size()];
+        int[] grantResults = new int[result.size()];
+        int i = 0;
+        for (Map.Entry<String, Boolean> entry : result.entrySet()) {
+            permissions[i] = entry.getKey();
+            grantResults[i] = Boolean.TRUE.equals(entry.getValue()) ? PERMISSION_GRANTED : PERMISSION_DENIED;
+            i++;
+        }
+        PermissionHelper.dispatchRuntimeResult(state, permissions, grantResults);
+    }
+
+    private void onSettingResult(@NonNull ActivityResult result) {
+        RequestState state = mPending;
+        mPending = null;
+        if (mReleased) unregister();
+        if (state == null) return;
+        PermissionHelper.dispatchSpecialResult(state);
+    }
+
+    @Override
+    public void release() {
+        if (mActivity == null) return;
+        if (mPending != null) {
+            // Result of running request still answers waiting requests of other helpers and starts next one
+            mReleased = true;
+            return;
+        }
+        unregister();
+    }
+
+    private void unregister() {
+        FragmentActivity activity = mActivity;
+        if (activity == null) return;
+        activity.getLifecycle().removeObserver(this);
+        // Also launchers bound to activity lifecycle, they would stay until activity is destroyed
+        mPermissionsLauncher.unregister();
+        mSettingLauncher.unregister();
+        mActivity = null;
+    }
+
+    @Override
+    public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+        if (event == Lifecycle.Event.ON_DESTROY) {
+            source.getLifecycle().removeObserver(this);
+            if (mPending != null || mNeedUnregister) {
+                // Result will not come to this engine, do not keep its helper waiting for it
+                HelperRegistry.unregister(mHandle);
+                mPending = null;
+            }
+            if (mNeedUnregister) {
+                mPermissionsLauncher.unregister();
+                mSettingLauncher.unregister();
+            }
+            mActivity = null;
+        }
+    }
+}
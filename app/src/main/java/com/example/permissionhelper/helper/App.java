@@ -2,6 +2,9 @@ package com.example.permissionhelper.helper;
 
 import android.app.Application;
 import android.content.Context;
+import android.content.res.Configuration;
+
+import androidx.annotation.NonNull;
 
 public class App extends Application {
     private static App mInstance;
@@ -14,5 +17,14 @@ public class App extends Application {
     public void onCreate() {
         mInstance = this;
         super.onCreate();
+        AppPermissions.prewarm();
+        registerActivityLifecycleCallbacks(new PermissionActivityCallbacks());
+        PermissionUtil.onConfigurationChanged(getResources().getConfiguration());
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        PermissionUtil.onConfigurationChanged(newConfig);
     }
 }
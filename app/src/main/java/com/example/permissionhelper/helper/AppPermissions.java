@@ -0,0 +1,32 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Lazy holder of the manifest permission index.
+ * Index is built on first use from {@link ManifestPermissions}, which is generated from merged manifest at build time,
+ * so it never queries {@code PackageManager} and does not depend on {@link App#context()}.
+ */
+public final class AppPermissions {
+
+    private AppPermissions() {
+    }
+
+    /**
+     * Build index in background
+     */
+    public static void prewarm() {
+        PermissionUtil.getExecutor().execute(AppPermissions::index);
+    }
+
+    @NonNull
+    public static PermissionIndex index() {
+        return Holder.INDEX;
+    }
+
+    private static class Holder {
+        static final PermissionIndex INDEX = new PermissionIndex(Arrays.asList(ManifestPermissions.NAMES));
+    }
+}
@@ -0,0 +1,427 @@
+package com.example.permissionhelper.helper;
+
+import android.app.Activity;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opt-in history of denied permissions kept across app launches: number of denials, time of last denial
+ * and whether permission is denied forever. A permission denied forever is not asked again,
+ * the request reports it as denied forever without a system dialog, so app can go to setting directly.
+ * <p>
+ * A denial without rationale afterwards is only taken as denied forever from the second denial on:
+ * rationale was shown after the first one, and closing the dialog without an answer also gives a denial
+ * without rationale. Granting a permission, or rationale being shown for it again, clears its history.
+ * <p>
+ * History is an append-only log in files dir. Header (magic, format, hash of permission table) is followed by
+ * records (id, flags, count, time), a later record of an id replaces earlier ones. Log is compacted to
+ * one record per denied permission when it grows too long. Log is read and written on
+ * {@link PermissionUtil#getExecutor()}, nothing is known until it is loaded, loading starts when history
+ * is enabled or first used.
+ */
+public final class DenialHistory {
+    private static final String TAG = DenialHistory.class.getSimpleName();
+    private static final String FILE_NAME = "permission_denials.log";
+
+    private static final int MAGIC = 0x50484448;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 15;
+    private static final byte FLAG_DENIED_FOREVER = 1;
+    /**
+     * Denials needed before a denial without rationale is taken as denied forever
+     */
+    private static final int DENIED_FOREVER_MIN_COUNT = 2;
+    /**
+     * Log is compacted when it has more records than this, or more than {@link #COMPACT_RATIO} records per entry
+     */
+    private static final int COMPACT_MIN_RECORDS = 64;
+    private static final int COMPACT_RATIO = 4;
+
+    private volatile boolean mEnabled;
+    @Nullable
+    private PermissionIndex mIndex;
+    private long mTableHash;
+    private boolean mLoadStarted;
+    private boolean mLoaded;
+    @Nullable
+    private int[] mCounts;
+    @Nullable
+    private long[] mLastDenied;
+    @Nullable
+    private PermissionBits mDeniedForever;
+    private int mRecords;
+    /**
+     * Results recorded before log was loaded, they are applied after it
+     */
+    @Nullable
+    private List<PermissionResult> mQueued;
+    /**
+     * Writes in order, a later write may not pass an earlier one on a parallel executor
+     */
+    private final ArrayDeque<Write> mWrites = new ArrayDeque<>();
+    private boolean mWriting;
+
+    DenialHistory() {
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (enabled) {
+            synchronized (this) {
+                startLoad();
+            }
+        }
+    }
+
+    /**
+     * @return number of denials of {@code permission} since it was last granted
+     */
+    public synchronized int getDenialCount(@NonNull String permission) {
+        int id = indexOf(permission);
+        return id < 0 ? 0 : mCounts[id];
+    }
+
+    /**
+     * @return time in millis of last denial of {@code permission}, or 0 if it was not denied
+     */
+    public synchronized long getLastDenied(@NonNull String permission) {
+        int id = indexOf(permission);
+        return id < 0 ? 0 : mLastDenied[id];
+    }
+
+    public synchronized boolean isDeniedForever(@NonNull String permission) {
+        int id = indexOf(permission);
+        return id >= 0 && mDeniedForever.contains(id);
+    }
+
+    /**
+     * Forget all denials, for example when user is asked to reset permissions in setting
+     */
+    public synchronized void clear() {
+        // Loaded log is dropped, nothing of it is kept
+        init(new int[index().size()], new long[index().size()], new PermissionBits(index().size()), 0);
+        mQueued = null;
+        compact();
+    }
+
+    /**
+     * Store answer of system dialog
+     */
+    synchronized void record(@NonNull PermissionResult result) {
+        if (!mEnabled) return;
+        if (!mLoaded) {
+            if (mQueued == null) mQueued = new ArrayList<>(1);
+            mQueued.add(result);
+            startLoad();
+            return;
+        }
+        PermissionBits changed = apply(result);
+        if (!changed.isEmpty()) save(changed);
+    }
+
+    /**
+     * Clear history of permissions which user granted in setting since they were denied, or which show
+     * rationale again, so they are asked again
+     */
+    synchronized void sync(@NonNull Activity activity) {
+        if (!mEnabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.M || !mLoaded) return;
+        PermissionBits changed = null;
+        for (int id = 0; id < mCounts.length; id++) {
+            if (mCounts[id] == 0) continue;
+            String permission = mIndex.get(id);
+            if (!PermissionUtil.isPermissionGranted(activity, permission)
+                    && !(mDeniedForever.contains(id) && PermissionUtil.shouldRationale(activity, permission))) {
+                continue;
+            }
+            reset(id);
+            if (changed == null) changed = new PermissionBits(mIndex.size());
+            changed.add(id);
+        }
+        if (changed != null) save(changed);
+    }
+
+    @NonNull
+    private PermissionBits apply(@NonNull PermissionResult result) {
+        PermissionBits changed = new PermissionBits(mIndex.size());
+        long now = System.currentTimeMillis();
+        for (String permission : result.getGranted()) {
+            int id = mIndex.indexOf(permission);
+            if (id < 0 || mCounts[id] == 0) continue;
+            reset(id);
+            changed.add(id);
+        }
+        for (String permission : result.getDenied()) {
+            deny(mIndex.indexOf(permission), false, now, changed);
+        }
+        for (String permission : result.getDeniedForever()) {
+            deny(mIndex.indexOf(permission), true, now, changed);
+        }
+        return changed;
+    }
+
+    private void reset(int id) {
+        mCounts[id] = 0;
+        mLastDenied[id] = 0;
+        mDeniedForever.remove(id);
+    }
+
+    private void deny(int id, boolean withoutRationale, long now, @NonNull PermissionBits changed) {
+        if (id < 0) return;
+        mCounts[id]++;
+        mLastDenied[id] = now;
+        if (withoutRationale && mCounts[id] >= DENIED_FOREVER_MIN_COUNT) mDeniedForever.add(id);
+        else mDeniedForever.remove(id);
+        changed.add(id);
+    }
+
+    private int indexOf(@NonNull String permission) {
+        if (!mEnabled) return -1;
+        if (!mLoaded) {
+            startLoad();
+            return -1;
+        }
+        return mIndex.indexOf(permission);
+    }
+
+    @NonNull
+    private PermissionIndex index() {
+        if (mIndex == null) {
+            PermissionIndex index = AppPermissions.index();
+            long hash = 1125899906842597L;
+            for (int id = 0; id < index.size(); id++) {
+                hash = 31 * hash + index.get(id).hashCode();
+            }
+            mTableHash = hash;
+            mIndex = index;
+        }
+        return mIndex;
+    }
+
+    private void init(@NonNull int[] counts, @NonNull long[] lastDenied, @NonNull PermissionBits deniedForever,
+                      int records) {
+        mCounts = counts;
+        mLastDenied = lastDenied;
+        mDeniedForever = deniedForever;
+        mRecords = records;
+        mLoaded = true;
+    }
+
+    //region Log
+
+    private void startLoad() {
+        if (mLoadStarted || mLoaded) return;
+        mLoadStarted = true;
+        index();
+        PermissionUtil.getExecutor().execute(this::load);
+    }
+
+    /**
+     * Read log on executor, then take it unless history was cleared meanwhile
+     */
+    private void load() {
+        PermissionIndex index;
+        long tableHash;
+        synchronized (this) {
+            index = index();
+            tableHash = mTableHash;
+        }
+        int[] counts = new int[index.size()];
+        long[] lastDenied = new long[index.size()];
+        PermissionBits deniedForever = new PermissionBits(index.size());
+        int records = 0;
+        boolean valid = true;
+        File file = file();
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                valid = in.readInt() == MAGIC && in.readInt() == FORMAT && in.readLong() == tableHash;
+                while (valid) {
+                    int id;
+                    try {
+                        id = in.readShort();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    byte flags = in.readByte();
+                    int count = in.readInt();
+                    long time = in.readLong();
+                    records++;
+                    if (id < 0 || id >= index.size()) continue;
+                    counts[id] = count;
+                    lastDenied[id] = time;
+                    if ((flags & FLAG_DENIED_FOREVER) != 0) deniedForever.add(id);
+                    else deniedForever.remove(id);
+                }
+            } catch (EOFException e) {
+                // Last record was cut by a crash while it was written, records before it are kept
+                Log.w(TAG, "Denial history ends with a partial record");
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read denial history", e);
+                valid = false;
+            }
+        }
+
+        synchronized (this) {
+            if (mLoaded) return;
+            if (!valid) {
+                // Written by other permissions table, app was updated, or corrupted
+                counts = new int[index.size()];
+                lastDenied = new long[index.size()];
+                deniedForever.clear();
+            }
+            init(counts, lastDenied, deniedForever, records);
+            boolean rewrite = !valid || !file.exists() || file.length() != HEADER_SIZE + (long) records * RECORD_SIZE;
+            if (mQueued != null) {
+                for (PermissionResult result : mQueued) {
+                    apply(result);
+                }
+                mQueued = null;
+                rewrite = true;
+            }
+            if (rewrite) compact();
+        }
+    }
+
+    /**
+     * Write records of {@code ids}, or whole log if it grew too long
+     */
+    private void save(@NonNull PermissionBits ids) {
+        int entries = 0;
+        for (int count : mCounts) {
+            if (count > 0) entries++;
+        }
+        if (mRecords + ids.size() > Math.max(COMPACT_MIN_RECORDS, entries * COMPACT_RATIO)) {
+            compact();
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(ids.size() * RECORD_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+                writeRecord(out, id);
+            }
+        } catch (IOException e) {
+            // Not thrown by a byte array
+            throw new IllegalStateException(e);
+        }
+        mRecords += ids.size();
+        enqueue(new Write(bytes.toByteArray(), true));
+    }
+
+    /**
+     * Rewrite log with one record per denied permission, new log replaces old one only when it is complete
+     */
+    private void compact() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + RECORD_SIZE * 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int records = 0;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(mTableHash);
+            for (int id = 0; id < mCounts.length; id++) {
+                if (mCounts[id] == 0) continue;
+                writeRecord(out, id);
+                records++;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mRecords = records;
+        enqueue(new Write(bytes.toByteArray(), false));
+    }
+
+    private void writeRecord(@NonNull DataOutputStream out, int id) throws IOException {
+        out.writeShort(id);
+        out.writeByte(mDeniedForever.contains(id) ? FLAG_DENIED_FOREVER : 0);
+        out.writeInt(mCounts[id]);
+        out.writeLong(mLastDenied[id]);
+    }
+
+    private void enqueue(@NonNull Write write) {
+        mWrites.add(write);
+        if (mWriting) return;
+        mWriting = true;
+        PermissionUtil.getExecutor().execute(this::drainWrites);
+    }
+
+    private void drainWrites() {
+        while (true) {
+            Write write;
+            synchronized (this) {
+                write = mWrites.poll();
+                if (write == null) {
+                    mWriting = false;
+                    return;
+                }
+            }
+            write.run();
+        }
+    }
+
+    @NonNull
+    private static File file() {
+        return new File(App.context().getFilesDir(), FILE_NAME);
+    }
+    //endregion
+
+// Inner class ---------------------------------------------------------------------------------
+
+    /**
+     * Bytes to append to log, or whole new log
+     */
+    private static final class Write {
+        @NonNull
+        final byte[] bytes;
+        final boolean append;
+
+        Write(@NonNull byte[] bytes, boolean append) {
+            this.bytes = bytes;
+            this.append = append;
+        }
+
+        void run() {
+            File file = file();
+            if (append) {
+                try (FileOutputStream out = new FileOutputStream(file, true)) {
+                    out.write(bytes);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not write denial history", e);
+                }
+                return;
+            }
+            File temp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(bytes);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not compact denial history", e);
+                return;
+            }
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Could not replace denial history");
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.permissionhelper.helper;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import androidx.fragment.app.FragmentActivity;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Engine backed by headless {@link PermissionHelper.PermissionFragment}
+ */
+final class FragmentEngine implements PermissionEngine {
+    @NonNull
+    private final WeakReference<FragmentActivity> mActivityWeakReference;
+
+    FragmentEngine(@NonNull FragmentActivity activity) {
+        mActivityWeakReference = new WeakReference<>(activity);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    @Override
+    public boolean start(@NonNull RequestState state) {
+        FragmentActivity activity = mActivityWeakReference.get();
+        return activity != null && PermissionHelper.PermissionFragment.start(state, activity);
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Opt-in cache of runtime permission grant state, keyed by id in manifest permission index.
+ * It is invalidated when a permission result or an activity result arrives, when an activity resumes
+ * and on {@link #invalidate()}.
+ */
+public final class GrantStateCache {
+    public static final int UNKNOWN = -1;
+    public static final int DENIED = 0;
+    public static final int GRANTED = 1;
+
+    private volatile boolean mEnabled;
+    /**
+     * Increase on every invalidate, so a result checked before invalidate is not stored
+     */
+    private int mGeneration;
+    @Nullable
+    private PermissionIndex mIndex;
+    @Nullable
+    private PermissionBits mKnown;
+    @Nullable
+    private PermissionBits mGranted;
+    private long mHitCount;
+    private long mMissCount;
+
+    GrantStateCache() {
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        invalidate();
+    }
+
+    /**
+     * Drop all cached state
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        if (mKnown != null) mKnown.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized void resetCounters() {
+        mHitCount = 0;
+        mMissCount = 0;
+    }
+
+    synchronized int generation() {
+        return mGeneration;
+    }
+
+    /**
+     * @return {@link #GRANTED}, {@link #DENIED} or {@link #UNKNOWN} when the state is not cached
+     */
+    synchronized int get(@NonNull final String permission) {
+        int id = index().indexOf(permission);
+        if (id >= 0 && mKnown != null && mKnown.contains(id)) {
+            mHitCount++;
+            return mGranted.contains(id) ? GRANTED : DENIED;
+        }
+        mMissCount++;
+        return UNKNOWN;
+    }
+
+    /**
+     * Store grant state, it is ignored if cache was invalidated after {@code generation} was taken
+     */
+    synchronized void put(@NonNull final String permission, boolean granted, int generation) {
+        if (!mEnabled || generation != mGeneration) return;
+        PermissionIndex index = index();
+        int id = index.indexOf(permission);
+        if (id < 0) return;
+        if (mKnown == null) {
+            mKnown = new PermissionBits(index.size());
+            mGranted = new PermissionBits(index.size());
+        }
+        mKnown.add(id);
+        if (granted) mGranted.add(id);
+        else mGranted.remove(id);
+    }
+
+    @NonNull
+    private PermissionIndex index() {
+        if (mIndex == null) mIndex = AppPermissions.index();
+        return mIndex;
+    }
+}
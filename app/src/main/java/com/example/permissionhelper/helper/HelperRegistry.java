@@ -0,0 +1,37 @@
+package com.example.permissionhelper.helper;
+
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * In-process registry of helpers which are waiting for a result,
+ * so a fragment only needs an {@code int} handle to find its helper.
+ * A helper is removed when its result comes, or by {@link PermissionHelper#release()} when its activity
+ * or fragment is destroyed, so a result which never comes does not keep it.
+ */
+final class HelperRegistry {
+    private static final SparseArray<PermissionHelper> HELPERS = new SparseArray<>();
+    private static int sNextHandle = 1;
+
+    private HelperRegistry() {
+    }
+
+    static synchronized int newHandle() {
+        return sNextHandle++;
+    }
+
+    static synchronized void register(int handle, @NonNull PermissionHelper helper) {
+        HELPERS.put(handle, helper);
+    }
+
+    static synchronized void unregister(int handle) {
+        HELPERS.remove(handle);
+    }
+
+    @Nullable
+    static synchronized PermissionHelper get(int handle) {
+        return HELPERS.get(handle);
+    }
+}
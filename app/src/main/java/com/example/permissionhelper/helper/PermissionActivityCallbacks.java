@@ -0,0 +1,47 @@
+package com.example.permissionhelper.helper;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Watch activities of the app to keep permission state fresh,
+ * user may change permissions in setting while an activity is in background
+ */
+final class PermissionActivityCallbacks implements Application.ActivityLifecycleCallbacks {
+
+    @Override
+    public void onActivityResumed(@NonNull Activity activity) {
+        PermissionUtil.getGrantCache().invalidate();
+        PermissionUtil.getSharedGrantState().sync(activity);
+        PermissionUtil.getDenialHistory().sync(activity);
+        PermissionUtil.getPermissionObserver().refresh();
+    }
+
+    @Override
+    public void onActivityCreated(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityStarted(@NonNull Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(@NonNull Activity activity) {
+    }
+
+    @Override
+    public void onActivityStopped(@NonNull Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(@NonNull Activity activity, @NonNull Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(@NonNull Activity activity) {
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.permissionhelper.helper;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+/**
+ * Backend which shows the system dialog or setting screen for a request of {@link PermissionHelper}.
+ * Results are given back through {@link PermissionHelper#dispatchRuntimeResult(RequestState, String[], int[])}
+ * and {@link PermissionHelper#dispatchSpecialResult(RequestState)}.
+ */
+interface PermissionEngine {
+    /**
+     * @return false if request could not be started now
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    boolean start(@NonNull RequestState state);
+
+    /**
+     * Helper is released, drop everything registered for it, nothing is started again.
+     * A running request still gives its result, other helpers of the activity wait for it.
+     */
+    default void release() {
+    }
+}
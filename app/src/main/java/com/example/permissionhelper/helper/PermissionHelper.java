@@ -1,10 +1,11 @@
 package com.example.permissionhelper.helper;
 
-import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.SparseArray;
 import android.view.WindowManager;
 
 import androidx.annotation.IntDef;
@@ -13,87 +14,147 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
+import androidx.fragment.app.FragmentManager;
 import androidx.lifecycle.Lifecycle;
-import androidx.lifecycle.LifecycleObserver;
-import androidx.lifecycle.OnLifecycleEvent;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
 
 import com.example.permissionhelper.helper.exception.PermissionNotDefined;
 
-import java.io.Serializable;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
 
-import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+public final class PermissionHelper {
 
-public final class PermissionHelper implements Serializable {
-
-    @IntDef({TYPE_WRITE_SETTINGS, TYPE_DRAW_OVERLAYS})
+    @IntDef({TYPE_WRITE_SETTINGS, TYPE_DRAW_OVERLAYS, TYPE_MANAGE_EXTERNAL_STORAGE, TYPE_INSTALL_PACKAGES,
+            TYPE_NOTIFICATION_POLICY, TYPE_IGNORE_BATTERY_OPTIMIZATIONS})
     @Retention(RetentionPolicy.SOURCE)
     public @interface SpecialPermissions {
     }
 
-    @IntDef({TYPE_RUNTIME, TYPE_WRITE_SETTINGS, TYPE_DRAW_OVERLAYS})
+    @IntDef({TYPE_RUNTIME, TYPE_WRITE_SETTINGS, TYPE_DRAW_OVERLAYS, TYPE_MANAGE_EXTERNAL_STORAGE, TYPE_INSTALL_PACKAGES,
+            TYPE_NOTIFICATION_POLICY, TYPE_IGNORE_BATTERY_OPTIMIZATIONS, TYPE_SPECIAL_BATCH})
     @Retention(RetentionPolicy.SOURCE)
     public @interface Type {
     }
 
+    @IntDef({ENGINE_FRAGMENT, ENGINE_ACTIVITY_RESULT})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Engine {
+    }
+
     public static final int DEFAULT_REQUEST_CODE = 0;
-    public static final int TYPE_RUNTIME = 0x01;
+    public static final int TYPE_RUNTIME = PermissionFlow.TYPE_RUNTIME;
     public static final int TYPE_WRITE_SETTINGS = 0x02;
     public static final int TYPE_DRAW_OVERLAYS = 0x03;
-
-    private static final int INIT_SIZE = 40;
-    private static final List<String> APP_PERMISSIONS = PermissionUtil.getAppPermissions();
-
+    public static final int TYPE_MANAGE_EXTERNAL_STORAGE = 0x04;
+    public static final int TYPE_INSTALL_PACKAGES = 0x05;
+    public static final int TYPE_NOTIFICATION_POLICY = 0x06;
+    public static final int TYPE_IGNORE_BATTERY_OPTIMIZATIONS = 0x07;
     /**
-     * Contains permissions param
+     * Type of merged result given by {@link #requestSpecialPermissions(int, int[], ResultListener)}
      */
-    private final List<String> mPermissions;
+    public static final int TYPE_SPECIAL_BATCH = 0x10;
     /**
-     * Contain permissions that was not grant
+     * Engine request type which opens app details setting, see {@link #openAppDetailsSettings(int)}
      */
-    private final List<String> mPermissionsRequest;
+    static final int TYPE_APP_DETAILS = 0x11;
     /**
-     * Contain permissions was granted
+     * Request through headless {@link PermissionFragment}. A request running when activity is recreated is
+     * dropped, its helper is released with the old activity.
      */
-    private final List<String> mPermissionsGranted;
+    public static final int ENGINE_FRAGMENT = 0;
     /**
-     * Contain permission was deny forever
+     * Request through Activity Result API, helper should be built before activity is started so launchers
+     * are bound to activity lifecycle. A request running when activity is recreated is dropped.
      */
-    private final List<String> mPermissionsDeniedForever;
-    private final List<String> mPermissionsRationale;
+    public static final int ENGINE_ACTIVITY_RESULT = 1;
+
     /**
-     * Contain permission was denied
+     * Handle to find this helper in {@link HelperRegistry} while it waits for a result
      */
-    private final List<String> mPermissionsDenied;
-    private int mRequestCode;
-    private boolean mExplain;
-    private @SpecialPermissions
-    int mSpecialType;
+    private final int mHandle;
+    @NonNull
+    private final PermissionEngine mEngine;
     @NonNull
     private WeakReference<FragmentActivity> mActivityWeakReference;
+    /**
+     * Request state machine, this helper adapts it to Android
+     */
+    @NonNull
+    private final PermissionFlow mFlow;
+    @NonNull
+    private final PermissionChecker mChecker;
+    @NonNull
+    private final Host mHost;
+    /**
+     * System requests of all helpers of the activity, they are asked one at a time
+     */
+    @NonNull
+    private final ActivityRequests mRequests;
+    /**
+     * Last result with permissions denied forever given to {@link BaseResultCallBack}, by request code
+     */
+    private final SparseArray<PermissionResult> mDeniedForever = new SparseArray<>();
+    /**
+     * Result which app details setting was opened for, it waits for user to return
+     */
+    @Nullable
+    private PermissionResult mSettingResult;
+    @Nullable
+    private ResultListener mSettingListener;
+    /**
+     * Futures of async requests waiting for result, they are cancelled by {@link #release()}
+     */
+    private final List<CompletableFuture<PermissionResult>> mFutures = new ArrayList<>(0);
 
     // Call back
     private RationaleCallback mRationale;
     private BaseResultCallBack mResult;
+    @Nullable
+    private PermissionFlow.MetricsListener mMetrics;
 
-    // State
-    private boolean mIsWaitingRationale;
-
-    private PermissionHelper(@NonNull FragmentActivity activity) {
-        mPermissions = new ArrayList<>(INIT_SIZE);
-        mPermissionsRequest = new ArrayList<>(INIT_SIZE);
-        mPermissionsGranted = new ArrayList<>(INIT_SIZE);
-        mPermissionsDeniedForever = new ArrayList<>(INIT_SIZE);
-        mPermissionsRationale = new ArrayList<>(INIT_SIZE);
-        mPermissionsDenied = new ArrayList<>(INIT_SIZE);
-        mRequestCode = DEFAULT_REQUEST_CODE;
+    /**
+     * Same request within this time after an accepted one is dropped, see {@link Builder#debounce(long)}
+     */
+    private long mDebounceMillis;
+    private int mLastType;
+    private int mLastRequestCode;
+    @Nullable
+    private PermissionBits mLastRequest;
+    private long mLastRequestTime;
+
+    private boolean mPrewarmObserved;
+    private final LifecycleEventObserver mPrewarmObserver = this::onPrewarmEvent;
+    /**
+     * Fragment which this helper is scoped to, or null if it is scoped to activity
+     */
+    @Nullable
+    private LifecycleOwner mOwner;
+    /**
+     * Releases this helper when its fragment, or activity if it is not scoped to a fragment, is destroyed
+     */
+    private final LifecycleEventObserver mOwnerObserver = this::onOwnerEvent;
+
+    private PermissionHelper(@NonNull FragmentActivity activity, @Engine int engine, @Nullable LifecycleOwner owner) {
         mActivityWeakReference = new WeakReference<>(activity);
+        mHandle = HelperRegistry.newHandle();
+        mRequests = ActivityRequests.of(activity);
+        mEngine = engine == ENGINE_ACTIVITY_RESULT ?
+                new ActivityResultEngine(activity, mHandle) : new FragmentEngine(activity);
+        mHost = new Host();
+        mChecker = new ActivityPermissionChecker(activity);
+        mFlow = new PermissionFlow(AppPermissions.index(), mChecker, mHost, mHost);
+        mOwner = owner;
+        (owner != null ? owner : activity).getLifecycle().addObserver(mOwnerObserver);
     }
 
     //region Getter, setter
@@ -116,12 +177,30 @@ public final class PermissionHelper implements Serializable {
         return this.mResult;
     }
 
+    public void setMetrics(@Nullable PermissionFlow.MetricsListener metrics) {
+        this.mMetrics = metrics;
+        mFlow.setMetrics(metrics);
+    }
+
+    @Nullable
+    public PermissionFlow.MetricsListener getMetrics() {
+        return this.mMetrics;
+    }
+
+    public void setDebounce(long millis) {
+        this.mDebounceMillis = millis;
+    }
+
+    public long getDebounce() {
+        return this.mDebounceMillis;
+    }
+
     public boolean isExplain() {
-        return mExplain;
+        return mFlow.isExplain();
     }
 
     public void setExplain(boolean mExplain) {
-        this.mExplain = mExplain;
+        mFlow.setExplain(mExplain);
     }
 
     //endregion
@@ -131,228 +210,458 @@ public final class PermissionHelper implements Serializable {
     }
 
     public void requestPermission(int requestCode, @NonNull final List<String> permissions) throws PermissionNotDefined {
-        if (!Utils.isSubList(APP_PERMISSIONS, permissions)) {
-            throw new PermissionNotDefined("Some request permissions did not defined in manifest");
-        } else {
-            resetData();
+        requestPermission(requestCode, permissions, null);
+    }
+
+    /**
+     * Request runtime permissions.
+     * If another request is running, a request with same permissions shares its result,
+     * other requests are merged into one pending request and are asked in one system dialog when it finishes.
+     * Each caller gets result of its own permissions with its own request code.
+     * Helpers of one activity ask one system dialog at a time, a request waiting for a dialog of another helper
+     * takes answers of permissions that dialog asked and only asks the others.
+     * Without listener, a request is dropped if same request is running, also while its rationale is shown,
+     * or waiting, or was accepted within debounce window, so repeated taps do not ask again.
+     *
+     * @param listener Receive result of this request instead of {@link BaseResultCallBack}
+     */
+    public void requestPermission(int requestCode, @NonNull final List<String> permissions,
+                                  @Nullable ResultListener listener) throws PermissionNotDefined {
+        long start = mMetrics != null ? System.nanoTime() : 0;
+        PermissionBits bits = toBits(permissions);
+        if (mMetrics != null) {
+            mMetrics.onPhase(requestCode, TYPE_RUNTIME, PermissionMetrics.PHASE_VALIDATION, System.nanoTime() - start);
         }
-        mRequestCode = requestCode;
-        mPermissions.addAll(permissions);
-        filterRuntime();
+        if (listener == null && isRedundant(requestCode, TYPE_RUNTIME, bits)) return;
+        mFlow.requestRuntime(requestCode, bits, listener);
     }
 
-    public void requestSpecialPermission(int requestCode, @SpecialPermissions int type) throws PermissionNotDefined {
-        String p = getSpecialPermission(type);
-        if (p == null
-                || !APP_PERMISSIONS.contains(p)) {
-            throw new PermissionNotDefined("Some request permissions did not defined in manifest");
-        } else {
-            resetData();
+    /**
+     * Listener requests are never dropped, each listener waits for its result
+     *
+     * @return true if same request is running or waiting, or was accepted within debounce window
+     */
+    private boolean isRedundant(int requestCode, int type, @NonNull PermissionBits permissions) {
+        if (mFlow.isRequested(requestCode, type, permissions)) return true;
+        long now = SystemClock.uptimeMillis();
+        if (mDebounceMillis > 0
+                && mLastRequest != null
+                && now - mLastRequestTime < mDebounceMillis
+                && mLastType == type
+                && mLastRequestCode == requestCode
+                && mLastRequest.equals(permissions)) {
+            return true;
         }
+        mLastType = type;
+        mLastRequestCode = requestCode;
+        mLastRequest = permissions;
+        mLastRequestTime = now;
+        return false;
+    }
 
-        mRequestCode = requestCode;
-        mSpecialType = type;
-        filterSpecial();
+    /**
+     * Check grant and rationale state of {@code permissions} ahead of a request, for example when the button
+     * which requests them becomes visible. State is computed now if activity is resumed, then every time
+     * activity resumes, and it is dropped when activity pauses. A request of these permissions skips the checks.
+     */
+    public void prewarm(@NonNull final List<String> permissions) throws PermissionNotDefined {
+        PermissionBits bits = toBits(permissions);
+        FragmentActivity activity = mActivityWeakReference.get();
+        if (activity == null) return;
+        if (!mPrewarmObserved) {
+            mPrewarmObserved = true;
+            activity.getLifecycle().addObserver(mPrewarmObserver);
+        }
+        mFlow.prewarm(bits);
+        if (activity.getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.RESUMED)) {
+            mFlow.computePrewarm();
+        }
     }
 
-    @Nullable
-    private String getSpecialPermission(@SpecialPermissions int type) {
-        switch (type) {
-            case TYPE_WRITE_SETTINGS:
-                return Manifest.permission.WRITE_SETTINGS;
-            case TYPE_DRAW_OVERLAYS:
-                return Manifest.permission.SYSTEM_ALERT_WINDOW;
-            default:
-                return null;
+    @NonNull
+    private static PermissionBits toBits(@NonNull final List<String> permissions) throws PermissionNotDefined {
+        PermissionIndex index = AppPermissions.index();
+        if (!index.containsAll(permissions)) {
+            if (permissions.isEmpty()) {
+                throw new PermissionNotDefined("Request permissions is empty");
+            }
+            throw new PermissionNotDefined(index.findUndeclared(permissions));
+        }
+        PermissionBits bits = new PermissionBits(index.size());
+        for (int i = 0, size = permissions.size(); i < size; i++) {
+            bits.add(index.indexOf(permissions.get(i)));
+        }
+        return bits;
+    }
+
+    private void onPrewarmEvent(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+        if (event == Lifecycle.Event.ON_RESUME) {
+            mFlow.computePrewarm();
+        } else if (event == Lifecycle.Event.ON_PAUSE) {
+            mFlow.invalidatePrewarm();
+        } else if (event == Lifecycle.Event.ON_DESTROY) {
+            source.getLifecycle().removeObserver(mPrewarmObserver);
         }
     }
 
     /**
-     * Delete old data and state
+     * Request runtime permissions, result is given by returned future.
+     * Future fails with {@link PermissionNotDefined} if some permissions were not declared in manifest,
+     * and it is cancelled if this helper is released before result comes.
      */
-    private void resetData() {
-        mPermissions.clear();
-        mPermissionsRequest.clear();
-        mPermissionsGranted.clear();
-        mPermissionsDeniedForever.clear();
-        mPermissionsRationale.clear();
-        mPermissionsDenied.clear();
-        mRequestCode = DEFAULT_REQUEST_CODE;
-        mIsWaitingRationale = false;
-        mSpecialType = -1;
+    @NonNull
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public CompletableFuture<PermissionResult> requestPermissionAsync(int requestCode, @NonNull final List<String> permissions) {
+        CompletableFuture<PermissionResult> future = new CompletableFuture<>();
+        try {
+            requestPermission(requestCode, permissions, track(future));
+        } catch (PermissionNotDefined e) {
+            mFutures.remove(future);
+            future.completeExceptionally(e);
+        }
+        return future;
     }
 
     /**
-     * Classify permissions are granted before.
-     * If permission was granted, put them in {@code mPermissionsGranted} list.
-     * If they not, put them in {@code mPermissionsRequest} list to request later.
+     * @return listener which completes {@code future}, it is kept until then
      */
-    private void filterRuntime() {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
-            // Don't need request
-            mPermissionsGranted.addAll(mPermissions);
-            callback(TYPE_RUNTIME);
-        } else {
-            // Filter
-            FragmentActivity activity = mActivityWeakReference.get();
-            if (activity == null) return;
-
-            for (String permission : mPermissions) {
-                if (!PermissionUtil.isPermissionGranted(permission)) {
-                    mPermissionsRequest.add(permission);
-                    if (mExplain || PermissionUtil.shouldRationale(activity, permission)) {
-                        mPermissionsRationale.add(permission);
-                    }
-                } else {
-                    mPermissionsGranted.add(permission);
-                }
-            }
+    @NonNull
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private ResultListener track(@NonNull CompletableFuture<PermissionResult> future) {
+        mFutures.add(future);
+        return result -> {
+            mFutures.remove(future);
+            future.complete(result);
+        };
+    }
+
+    public void requestSpecialPermission(int requestCode, @SpecialPermissions int type) throws PermissionNotDefined {
+        requestSpecialPermission(requestCode, type, null);
+    }
 
-            checkList();
+    /**
+     * Without listener, a request is dropped like a redundant {@link #requestPermission(int, List, ResultListener)}
+     *
+     * @param listener Receive result of this request instead of {@link BaseResultCallBack}
+     */
+    public void requestSpecialPermission(int requestCode, @SpecialPermissions int type,
+                                         @Nullable ResultListener listener) throws PermissionNotDefined {
+        long start = mMetrics != null ? System.nanoTime() : 0;
+        String p = getSpecialPermission(type);
+        PermissionIndex index = AppPermissions.index();
+        if (p == null) {
+            throw new PermissionNotDefined("Unknown special permission type: " + type);
+        } else if (!index.contains(p)) {
+            throw new PermissionNotDefined(Collections.singletonList(p));
         }
+        if (mMetrics != null) {
+            mMetrics.onPhase(requestCode, type, PermissionMetrics.PHASE_VALIDATION, System.nanoTime() - start);
+        }
+        int id = index.indexOf(p);
+        if (listener == null) {
+            PermissionBits bits = new PermissionBits(index.size());
+            bits.add(id);
+            if (isRedundant(requestCode, type, bits)) return;
+        }
+        mFlow.requestSpecial(requestCode, type, id, listener);
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private void checkList() {
-        if (mPermissionsRequest.isEmpty()) {
-            // All permissions was granted
-            callback(TYPE_RUNTIME);
-        } else if (mRationale != null
-                && mPermissionsRationale.size() > 0) {
-            // Rationale
-            mRationale.rationale(mRequestCode, this::continues, mPermissionsRationale);
-            mIsWaitingRationale = true;
-        } else {
-            // Request
-            startRequest(TYPE_RUNTIME);
+    /**
+     * Request special permission, result is given by returned future.
+     * Future fails with {@link PermissionNotDefined} if permission was not declared in manifest,
+     * and it is cancelled if this helper is released before result comes.
+     */
+    @NonNull
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public CompletableFuture<PermissionResult> requestSpecialPermissionAsync(int requestCode, @SpecialPermissions int type) {
+        CompletableFuture<PermissionResult> future = new CompletableFuture<>();
+        try {
+            requestSpecialPermission(requestCode, type, track(future));
+        } catch (PermissionNotDefined e) {
+            mFutures.remove(future);
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
-    private void filterSpecial() {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
-            // Don't need request
-            callback(mSpecialType);
-        } else {
-            boolean isGranted = false;
-            switch (mSpecialType) {
-                case TYPE_WRITE_SETTINGS:
-                    isGranted = PermissionUtil.isGrantedWriteSettings();
-                    break;
-                case TYPE_DRAW_OVERLAYS:
-                    isGranted = PermissionUtil.isGrantedDrawOverlays();
-                    break;
-            }
+    public void requestSpecialPermissions(int requestCode, @NonNull @SpecialPermissions int... types)
+            throws PermissionNotDefined {
+        requestSpecialPermissions(requestCode, types, null);
+    }
 
-            String p = getSpecialPermission(mSpecialType);
-            if (isGranted) callback(mSpecialType);
-            else if (p != null && mExplain && mRationale != null) {
-                mRationale.rationale(mRequestCode, this::continues, Collections.singletonList(p));
-                mIsWaitingRationale = true;
+    /**
+     * Request several special permissions in one flow, setting screens of not granted permissions are opened
+     * one after another. Nothing is requested if one of them is unknown or not declared in manifest.
+     * Next screen is opened as soon as user comes back from previous one, activity does not need to resume first.
+     *
+     * @param listener Receive one merged result of type {@link #TYPE_SPECIAL_BATCH} instead of
+     *                 one {@link BaseResultCallBack#onSpecialResult(int, int, boolean)} for each type
+     */
+    public void requestSpecialPermissions(int requestCode, @NonNull @SpecialPermissions int[] types,
+                                          @Nullable ResultListener listener) throws PermissionNotDefined {
+        PermissionIndex index = AppPermissions.index();
+        PermissionBits bits = new PermissionBits(index.size());
+        List<String> undeclared = null;
+        for (int type : types) {
+            String p = getSpecialPermission(type);
+            if (p == null) {
+                throw new PermissionNotDefined("Unknown special permission type: " + type);
+            } else if (!index.contains(p)) {
+                if (undeclared == null) undeclared = new ArrayList<>();
+                undeclared.add(p);
             } else {
-                // Need Request
-                startRequest(mSpecialType);
+                bits.add(index.indexOf(p));
             }
         }
+        if (undeclared != null) throw new PermissionNotDefined(undeclared);
+        if (bits.isEmpty()) throw new PermissionNotDefined("Request permissions is empty");
+
+        ResultListener each = listener == null ? null : new SpecialBatch(requestCode, bits, listener);
+        PermissionBits added = new PermissionBits(index.size());
+        for (int type : types) {
+            int id = index.indexOf(getSpecialPermission(type));
+            if (added.contains(id)) continue;
+            added.add(id);
+            requestSpecialPermission(requestCode, type, each);
+        }
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private void startRequest(@Type int type) {
-        FragmentActivity activity = mActivityWeakReference.get();
-        if (activity == null) return;
-        PermissionFragment.start(type, this, activity);
+    /**
+     * Finish running request now, its permissions which were not answered are not resolved.
+     * Use it when a rationale will not be answered, same request shares it and other requests wait for it.
+     */
+    public void cancel() {
+        mFlow.cancel();
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private void cStartRequest() {
-        if (mIsWaitingRationale) {
-            if (mSpecialType == -1) startRequest(TYPE_RUNTIME);
-            else startRequest(mSpecialType);
+    /**
+     * Drop running and waiting requests and callbacks, nothing is delivered by this helper any more,
+     * futures of async requests are cancelled.
+     * It is called when fragment or activity which this helper is scoped to is destroyed,
+     * so {@link HelperRegistry} does not keep a helper whose result never comes.
+     */
+    public void release() {
+        mFlow.release();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) cancelFutures();
+        mFlow.invalidatePrewarm();
+        mRequests.remove(this);
+        mEngine.release();
+        HelperRegistry.unregister(mHandle);
+        mRationale = null;
+        mResult = null;
+        mSettingResult = null;
+        mSettingListener = null;
+        mDeniedForever.clear();
+        mLastRequest = null;
+        FragmentActivity activity = mActivityWeakReference.get();
+        if (activity != null) {
+            if (mPrewarmObserved) activity.getLifecycle().removeObserver(mPrewarmObserver);
+            activity.getLifecycle().removeObserver(mOwnerObserver);
+        }
+        mPrewarmObserved = false;
+        if (mOwner != null) {
+            mOwner.getLifecycle().removeObserver(mOwnerObserver);
+            mOwner = null;
         }
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
-        if (requestCode != mRequestCode) {
-            return;
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private void cancelFutures() {
+        if (mFutures.isEmpty()) return;
+        // Copy first, a dependent action of a future may request again
+        List<CompletableFuture<PermissionResult>> futures = new ArrayList<>(mFutures);
+        mFutures.clear();
+        for (CompletableFuture<PermissionResult> future : futures) {
+            future.cancel(false);
         }
+    }
 
-        // Request result
-        FragmentActivity activity = mActivityWeakReference.get();
-        if (activity == null) return;
+    private void onOwnerEvent(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+        if (event == Lifecycle.Event.ON_DESTROY) release();
+    }
 
-        String p;
-        for (int i = 0; i < permissions.length; i++) {
-            p = permissions[i];
-            if (mPermissionsRequest.contains(p)) {
-                if (grantResults[i] == PERMISSION_GRANTED) {
-                    mPermissionsGranted.add(p);
-                } else {
-                    // Denied
-                    if (PermissionUtil.shouldRationale(activity, p)) {
-                        mPermissionsDenied.add(p);
-                    } else {
-                        mPermissionsDeniedForever.add(p);
-                    }
-                }
-            }
-        }
-        callback(TYPE_RUNTIME);
+    /**
+     * @return false if fragment which this helper is scoped to is destroyed
+     */
+    private boolean isOwnerAlive() {
+        return mOwner == null || mOwner.getLifecycle().getCurrentState() != Lifecycle.State.DESTROYED;
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private void onSpecialPermissions(int requestCode) {
-        if (requestCode != mRequestCode) return;
-        callback(mSpecialType);
-    }
-
-    private void callback(@Type int type) {
-        if (mResult != null) {
-            boolean isGranted;
-            switch (type) {
-                case TYPE_RUNTIME:
-                    mResult.onRuntimeResult(mRequestCode, mPermissions, mPermissionsGranted, mPermissionsDenied,
-                            mPermissionsDeniedForever);
-                    break;
-                case TYPE_DRAW_OVERLAYS:
-                    isGranted = true;
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                        isGranted = PermissionUtil.isGrantedDrawOverlays();
-                    }
-                    mResult.onSpecialResult(mRequestCode, TYPE_DRAW_OVERLAYS, isGranted);
-                    break;
-                case TYPE_WRITE_SETTINGS:
-                    isGranted = true;
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                        isGranted = PermissionUtil.isGrantedWriteSettings();
-                    }
-                    mResult.onSpecialResult(mRequestCode, TYPE_WRITE_SETTINGS, isGranted);
-                    break;
-            }
+    /**
+     * Open app details setting for permissions denied forever in last result of {@code requestCode} given to
+     * {@link BaseResultCallBack}. When user returns only those permissions are checked again,
+     * and result of whole request is given to {@link BaseResultCallBack} again.
+     *
+     * @return false if nothing was denied forever, a request is running, or setting could not be opened
+     */
+    public boolean openAppDetailsSettings(int requestCode) {
+        PermissionResult result = mDeniedForever.get(requestCode);
+        return result != null && openAppDetailsSettings(result, null);
+    }
 
-        }
-        resetData();
+    /**
+     * Open app details setting for permissions denied forever in {@code result}. When user returns only those
+     * permissions are checked again, and {@code result} updated with them is given to listener.
+     *
+     * @param listener Receive merged result instead of {@link BaseResultCallBack}
+     * @return false if nothing was denied forever, a request is running, or setting could not be opened
+     */
+    public boolean openAppDetailsSettings(@NonNull PermissionResult result, @Nullable ResultListener listener) {
+        if (result.getDeniedForever().isEmpty() || mSettingResult != null || !mFlow.isIdle()) return false;
+        mSettingResult = result;
+        mSettingListener = listener;
+        RequestState state = new RequestState(mHandle, TYPE_APP_DETAILS, result.getRequestCode(), new String[0]);
+        if (mHost.start(state)) return true;
+        mSettingResult = null;
+        mSettingListener = null;
+        return false;
     }
 
+    /**
+     * User returned from app details setting, check again permissions which were denied forever
+     */
+    private void onAppDetailsResult() {
+        PermissionResult previous = mSettingResult;
+        ResultListener listener = mSettingListener;
+        mSettingResult = null;
+        mSettingListener = null;
+        if (previous == null) return;
+
+        PermissionIndex index = AppPermissions.index();
+        PermissionBits request = bitsOf(previous.getRequest(), index);
+        PermissionBits granted = bitsOf(previous.getGranted(), index);
+        PermissionBits denied = bitsOf(previous.getDenied(), index);
+        PermissionBits deniedForever = new PermissionBits(index.size());
+        for (String p : previous.getDeniedForever()) {
+            if (mChecker.isGranted(p)) granted.add(index.indexOf(p));
+            else deniedForever.add(index.indexOf(p));
+        }
+        PermissionResult result = PermissionResult.of(previous.getRequestCode(), TYPE_RUNTIME, index, request,
+                granted, denied, deniedForever);
+        if (listener != null) {
+            listener.onResult(result);
+        } else {
+            mHost.onRuntimeResult(result.getRequestCode(), result);
+        }
+    }
 
-    private void cCallback() {
-        if (mIsWaitingRationale) {
-            if (mSpecialType == -1) callback(TYPE_RUNTIME);
-            else callback(mSpecialType);
+    @NonNull
+    private static PermissionBits bitsOf(@NonNull List<String> permissions, @NonNull PermissionIndex index) {
+        PermissionBits bits = new PermissionBits(index.size());
+        for (int i = 0, size = permissions.size(); i < size; i++) {
+            bits.add(index.indexOf(permissions.get(i)));
         }
+        return bits;
+    }
+
+    @Nullable
+    private static String getSpecialPermission(@SpecialPermissions int type) {
+        SpecialPermission special = SpecialPermission.get(type);
+        return special == null ? null : special.getPermission();
     }
 
     /**
-     * Continues request when rationale call back invoke
+     * Give runtime result from an engine to helper of {@code state}, and to waiting requests of other helpers
+     * of the activity which it answers
      */
+    static void dispatchRuntimeResult(@NonNull RequestState state, @NonNull String[] permissions,
+                                      @NonNull int[] grantResults) {
+        PermissionUtil.getGrantCache().invalidate();
+        PermissionUtil.getSharedGrantState().put(permissions, grantResults);
+        ActivityRequests.onRuntimeResult(state, permissions, grantResults);
+    }
+
+    /**
+     * Give special permission result from an engine to helper of {@code state}
+     */
+    static void dispatchSpecialResult(@NonNull RequestState state) {
+        PermissionUtil.getGrantCache().invalidate();
+        ActivityRequests.onSpecialResult(state);
+    }
+
+    int getHandle() {
+        return mHandle;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.M)
-    private void continues(int requestCode, boolean continues) {
-        if (requestCode == mRequestCode) {
-            if (continues) {
-                cStartRequest();
-            } else {
-                cCallback();
+    boolean startEngine(@NonNull RequestState state) {
+        return mEngine.start(state);
+    }
+
+    /**
+     * Answer of system dialog of a request of this helper, given by {@link ActivityRequests}
+     */
+    void onRuntimeAnswer(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        mFlow.invalidatePrewarm();
+        mFlow.onRuntimeResult(requestCode, permissions, grantResults);
+    }
+
+    /**
+     * User came back from setting screen {@code type} requested by this helper
+     */
+    void onSpecialAnswer(int type) {
+        if (type == TYPE_APP_DETAILS) {
+            onAppDetailsResult();
+        } else {
+            mFlow.onSpecialResult(type);
+        }
+    }
+
+    /**
+     * Asks user through {@link PermissionEngine} and gives results to callbacks of this helper
+     */
+    private final class Host implements PermissionRequester, PermissionFlow.Callback {
+
+        @Override
+        public boolean isAvailable() {
+            if (mActivityWeakReference.get() != null && isOwnerAlive()) return true;
+            // Activity or fragment is gone, nothing will be delivered to this helper any more
+            HelperRegistry.unregister(mHandle);
+            return false;
+        }
+
+        @Override
+        public boolean requestRuntime(int requestCode, @NonNull String[] permissions) {
+            return start(new RequestState(mHandle, TYPE_RUNTIME, requestCode, permissions));
+        }
+
+        @Override
+        public boolean requestSpecial(int requestCode, int type) {
+            return start(new RequestState(mHandle, type, requestCode, new String[0]));
+        }
+
+        private boolean start(@NonNull RequestState state) {
+            // Nothing is requested before M, checker reports everything as granted
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return false;
+            return mRequests.start(PermissionHelper.this, state);
+        }
+
+        @Override
+        public boolean onRationale(int requestCode, @NonNull List<String> permissions) {
+            if (mRationale == null || !isOwnerAlive()) return false;
+            mRationale.rationale(requestCode, mFlow::continues, permissions);
+            return true;
+        }
+
+        @Override
+        public void onRuntimeResult(int requestCode, @NonNull PermissionResult result) {
+            if (result.getDeniedForever().isEmpty()) mDeniedForever.remove(requestCode);
+            else mDeniedForever.put(requestCode, result);
+            if (mResult != null && isOwnerAlive()) {
+                mResult.onRuntimeResult(requestCode, result.getRequest(), result.getGranted(), result.getDenied(),
+                        result.getDeniedForever());
             }
         }
+
+        @Override
+        public void onSpecialResult(int requestCode, int type, boolean isGranted) {
+            if (mResult != null && isOwnerAlive()) mResult.onSpecialResult(requestCode, type, isGranted);
+        }
+
+        @Override
+        public void onAnswered(@NonNull PermissionResult result) {
+            PermissionUtil.getDenialHistory().record(result);
+        }
     }
 
     public static class Builder {
@@ -360,14 +669,25 @@ public final class PermissionHelper implements Serializable {
         private BaseResultCallBack mResult;
         @NonNull
         private FragmentActivity mActivity;
+        @Nullable
+        private LifecycleOwner mOwner;
         private boolean mExplain;
+        private @Engine
+        int mEngine = ENGINE_FRAGMENT;
+        @Nullable
+        private PermissionFlow.MetricsListener mMetrics;
+        private long mDebounceMillis;
 
         public Builder(@NonNull FragmentActivity activity) {
             this.mActivity = activity;
         }
 
+        /**
+         * Helper is scoped to {@code fragment}, it is released when fragment is destroyed
+         */
         public Builder(@NonNull Fragment fragment) {
             this.mActivity = Objects.requireNonNull(fragment.getActivity());
+            this.mOwner = fragment;
         }
 
         public Builder rational(RationaleCallback rational) {
@@ -385,37 +705,127 @@ public final class PermissionHelper implements Serializable {
             return this;
         }
 
+        public Builder engine(@Engine int engine) {
+            this.mEngine = engine;
+            return this;
+        }
+
+        /**
+         * Report phase timings and outcomes of requests, see {@link PermissionMetrics}
+         */
+        public Builder metrics(@Nullable PermissionFlow.MetricsListener metrics) {
+            this.mMetrics = metrics;
+            return this;
+        }
+
+        /**
+         * Drop a request without listener if same request was accepted less than {@code millis} ago,
+         * for example when user taps request button twice
+         */
+        public Builder debounce(long millis) {
+            this.mDebounceMillis = millis;
+            return this;
+        }
+
         public PermissionHelper build() {
-            PermissionHelper instance = new PermissionHelper(mActivity);
+            PermissionHelper instance = new PermissionHelper(mActivity, mEngine, mOwner);
             instance.setRationale(mRational);
             instance.setResult(mResult);
             instance.setExplain(mExplain);
+            instance.setMetrics(mMetrics);
+            instance.setDebounce(mDebounceMillis);
             return instance;
         }
     }
 
 // Inner class ---------------------------------------------------------------------------------
 
+    /**
+     * Headless fragment, one instance is attached to an activity and reused for every request.
+     * Each request gets its own request code, results are dispatched to helper of that request.
+     */
     @RequiresApi(api = Build.VERSION_CODES.M)
-    public static class PermissionFragment extends Fragment implements LifecycleObserver {
+    public static class PermissionFragment extends Fragment {
 
         public static final String TAG = PermissionFragment.class.getSimpleName();
-        public static final String TYPE = "TYPE";
-        public static final String HELPER = "HELPER";
+        /**
+         * Fragments committed but not added yet, fragment manager does not find them by tag
+         */
+        private static final Map<FragmentActivity, WeakReference<PermissionFragment>> ADDING = new WeakHashMap<>();
+        /**
+         * Fragment request code must fit in lower 16 bits
+         */
+        private static final int MAX_CODE = 0xFFFF;
 
-        private PermissionHelper mPermissionHelper;
-        private int mType;
+        /**
+         * Requests waiting for result, keyed by request code given to system
+         */
+        private final SparseArray<RequestState> mPending = new SparseArray<>();
+        /**
+         * Requests started before this fragment was created, they are sent in {@link #onCreate(Bundle)}
+         */
+        private final List<RequestState> mQueued = new ArrayList<>(1);
+        private boolean mCreated;
+        private int mNextCode = 1;
         private FragmentActivity mActivity;
-        private boolean mNeedRemove = false;
-
-        public static void start(@Type int type, @NonNull PermissionHelper helper, @NonNull FragmentActivity activity) {
-            if (Utils.isGoodTimeTrans(activity)) {
-                PermissionFragment fragment = new PermissionFragment();
-                Bundle bundle = new Bundle();
-                bundle.putInt(TYPE, type);
-                bundle.putSerializable(HELPER, helper);
-                fragment.setArguments(bundle);
-                activity.getSupportFragmentManager().beginTransaction().add(fragment, TAG).commit();
+
+        /**
+         * Start request through fragment of {@code activity}. Results come before activity resumes, so a created
+         * fragment is asked right away, only adding a new fragment waits until activity is resumed.
+         *
+         * @return false if request could not be started, activity is destroyed
+         */
+        public static boolean start(@NonNull RequestState state, @NonNull FragmentActivity activity) {
+            if (activity.getLifecycle().getCurrentState() == Lifecycle.State.DESTROYED) return false;
+            FragmentManager fragmentManager = activity.getSupportFragmentManager();
+            PermissionFragment fragment = (PermissionFragment) fragmentManager.findFragmentByTag(TAG);
+            if (fragment == null) {
+                WeakReference<PermissionFragment> adding = ADDING.get(activity);
+                fragment = adding != null ? adding.get() : null;
+            }
+            if (fragment == null) {
+                if (!Utils.isGoodTimeTrans(activity)) {
+                    startOnResume(state, activity);
+                    return true;
+                }
+                fragment = new PermissionFragment();
+                // Not commitNow, request may start while fragment manager is executing transactions
+                fragmentManager.beginTransaction().add(fragment, TAG).commit();
+                ADDING.put(activity, new WeakReference<>(fragment));
+            }
+            if (!fragment.mCreated) {
+                fragment.mQueued.add(state);
+                return true;
+            }
+            return fragment.request(state);
+        }
+
+        /**
+         * Fragment can not be added before activity is resumed, start {@code state} when it is
+         */
+        private static void startOnResume(@NonNull RequestState state, @NonNull FragmentActivity activity) {
+            activity.getLifecycle().addObserver(new LifecycleEventObserver() {
+                @Override
+                public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+                    if (event == Lifecycle.Event.ON_RESUME) {
+                        source.getLifecycle().removeObserver(this);
+                        if (!start(state, activity)) dispatchNotStarted(state);
+                    } else if (event == Lifecycle.Event.ON_DESTROY) {
+                        // Helpers of activity are released with it
+                        source.getLifecycle().removeObserver(this);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Could not ask, give result now so helper of {@code state} is not blocked
+         */
+        private static void dispatchNotStarted(@NonNull RequestState state) {
+            if (state.type == TYPE_RUNTIME) {
+                dispatchRuntimeResult(state, new String[0], new int[0]);
+            } else {
+                dispatchSpecialResult(state);
             }
         }
 
@@ -423,87 +833,134 @@ public final class PermissionHelper implements Serializable {
         public void onAttach(@NonNull Context context) {
             super.onAttach(context);
             mActivity = (FragmentActivity) context;
-            mActivity.getLifecycle().addObserver(this);
         }
 
         @Override
         public void onCreate(@Nullable Bundle savedInstanceState) {
-            if (savedInstanceState != null) {
-                // Don't do request when this instance is restore
-                if (Utils.isGoodTimeTrans(mActivity)) {
-                    removeMySelf();
-                } else {
-                    mNeedRemove = true;
-                }
-                return;
+            super.onCreate(savedInstanceState);
+            mCreated = true;
+            if (mActivity != null) ADDING.remove(mActivity);
+            for (RequestState state : mQueued) {
+                if (!request(state)) dispatchNotStarted(state);
             }
+            mQueued.clear();
+        }
 
-            Bundle bundle = getArguments();
-            if (bundle != null) {
-                mType = bundle.getInt(TYPE);
-                mPermissionHelper = (PermissionHelper) bundle.getSerializable(HELPER);
-            }
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            setTouchable(true);
+        }
 
+        private boolean request(@NonNull RequestState state) {
+            if (!isAdded()) return false;
+            int code = nextCode();
+            mPending.put(code, state);
             // We use this flag to prevent user touch to activity when this fragment request permissions
-            //todo: Watch this. This may lead activity to not touchable
-            mActivity.getWindow().addFlags(WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE
-                    | WindowManager.LayoutParams.FLAG_WATCH_OUTSIDE_TOUCH);
-            super.onCreate(null);
-
-            if (mType == TYPE_RUNTIME) {
-                requestPermissions(mPermissionHelper.mPermissionsRequest.toArray(new String[0]), mPermissionHelper.mRequestCode);
-            } else if (mType == TYPE_WRITE_SETTINGS) {
-                PermissionUtil.requestWriteSettingPermission(this, TYPE_WRITE_SETTINGS);
-            } else if (mType == TYPE_DRAW_OVERLAYS) {
-                PermissionUtil.requestOverlayPermission(this, TYPE_DRAW_OVERLAYS);
+            setTouchable(false);
+
+            if (state.type == TYPE_RUNTIME) {
+                requestPermissions(state.permissions, code);
+            } else {
+                Intent intent = PermissionUtil.getSpecialPermissionIntent(requireContext(), state.type);
+                if (intent == null) {
+                    takePending(code);
+                    return false;
+                }
+                startActivityForResult(intent, code);
             }
+            return true;
         }
 
-        @Override
-        public void onDestroy() {
-            super.onDestroy();
-            //todo: Watch this. This may lead activity to not touchable
-            mActivity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE
-                    | WindowManager.LayoutParams.FLAG_WATCH_OUTSIDE_TOUCH);
+        private int nextCode() {
+            int code = mNextCode;
+            while (mPending.get(code) != null) {
+                code = code % MAX_CODE + 1;
+            }
+            mNextCode = code % MAX_CODE + 1;
+            return code;
         }
 
-        @OnLifecycleEvent(Lifecycle.Event.ON_RESUME)
-        public void onActivityResumed() {
-            if (mNeedRemove) {
-                removeMySelf();
-                mNeedRemove = false;
+        //todo: Watch this. This may lead activity to not touchable
+        private void setTouchable(boolean touchable) {
+            if (mActivity == null) return;
+            int flags = WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE | WindowManager.LayoutParams.FLAG_WATCH_OUTSIDE_TOUCH;
+            if (touchable) {
+                mActivity.getWindow().clearFlags(flags);
+            } else {
+                mActivity.getWindow().addFlags(flags);
             }
         }
 
-        private void removeMySelf() {
-            mActivity.getSupportFragmentManager().beginTransaction().remove(this).commit();
+        /**
+         * @return state of request with {@code code}, it is removed from pending requests
+         */
+        @Nullable
+        private RequestState takePending(int code) {
+            RequestState state = mPending.get(code);
+            mPending.remove(code);
+            if (mPending.size() == 0) setTouchable(true);
+            return state;
         }
 
         @Override
         public void onActivityResult(int requestCode, int resultCode, Intent data) {
             super.onActivityResult(requestCode, resultCode, data);
-            mPermissionHelper.onSpecialPermissions(requestCode);
-            if (Utils.isGoodTimeTrans(mActivity)) {
-                removeMySelf();
-            } else {
-                mNeedRemove = true;
-            }
+            RequestState state = takePending(requestCode);
+            if (state != null) dispatchSpecialResult(state);
         }
 
         @Override
         public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
                                                @NonNull int[] grantResults) {
-            mPermissionHelper.onRequestPermissionsResult(requestCode, permissions, grantResults);
-            if (Utils.isGoodTimeTrans(mActivity)) {
-                removeMySelf();
-            } else {
-                mNeedRemove = true;
+            RequestState state = takePending(requestCode);
+            if (state != null) dispatchRuntimeResult(state, permissions, grantResults);
+        }
+    }
+
+    /**
+     * Collect results of special permissions requested together and give them to listener at once
+     */
+    private static final class SpecialBatch implements ResultListener {
+        private final int mRequestCode;
+        @NonNull
+        private final PermissionBits mRequest;
+        @NonNull
+        private final PermissionBits mGranted;
+        @NonNull
+        private final PermissionBits mDenied;
+        @NonNull
+        private final ResultListener mListener;
+        private int mRemaining;
+
+        SpecialBatch(int requestCode, @NonNull PermissionBits request, @NonNull ResultListener listener) {
+            mRequestCode = requestCode;
+            mRequest = request;
+            mGranted = new PermissionBits(AppPermissions.index().size());
+            mDenied = new PermissionBits(AppPermissions.index().size());
+            mListener = listener;
+            mRemaining = request.size();
+        }
+
+        @Override
+        public void onResult(@NonNull PermissionResult result) {
+            PermissionIndex index = AppPermissions.index();
+            int id = index.indexOf(result.getRequest().get(0));
+            if (result.isAllGranted()) mGranted.add(id);
+            else mDenied.add(id);
+            if (--mRemaining == 0) {
+                mListener.onResult(PermissionResult.of(mRequestCode, TYPE_SPECIAL_BATCH, index, mRequest, mGranted,
+                        mDenied, new PermissionBits(index.size())));
             }
         }
     }
 
 // Call back -----------------------------------------------------------------------------------
 
+    @FunctionalInterface
+    public interface ResultListener extends PermissionFlow.Listener {
+    }
+
     public interface RationaleCallback {
         void rationale(int requestCode, @NonNull PermissionPredicate predicate, @NonNull List<String> rationale);
     }
@@ -0,0 +1,119 @@
+package com.example.permissionhelper.helper;
+
+import android.os.Build;
+import android.util.SparseArray;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Notify listeners when grant state of a permission changes, for example when user revokes it in setting.
+ * State is refreshed when an activity resumes, which includes returning from setting screens.
+ * Only permissions with listeners are checked, and only listeners of changed permissions are notified.
+ */
+@MainThread
+public final class PermissionObserver {
+
+    public interface Listener {
+        void onPermissionChanged(@NonNull String permission, boolean isGranted);
+    }
+
+    @Nullable
+    private PermissionIndex mIndex;
+    /**
+     * Listeners by permission id
+     */
+    private final SparseArray<List<Listener>> mListeners = new SparseArray<>();
+    @Nullable
+    private PermissionBits mWatched;
+    /**
+     * Grant state of watched permissions at last refresh
+     */
+    @Nullable
+    private PermissionBits mGranted;
+
+    PermissionObserver() {
+    }
+
+    /**
+     * Listen to changes of {@code permission}, current state is taken as baseline
+     *
+     * @return false if permission was not declared in manifest
+     */
+    public boolean subscribe(@NonNull String permission, @NonNull Listener listener) {
+        PermissionIndex index = index();
+        int id = index.indexOf(permission);
+        if (id < 0) return false;
+        if (mWatched == null) {
+            mWatched = new PermissionBits(index.size());
+            mGranted = new PermissionBits(index.size());
+        }
+        List<Listener> listeners = mListeners.get(id);
+        if (listeners == null) {
+            listeners = new ArrayList<>(1);
+            mListeners.put(id, listeners);
+        }
+        if (!mWatched.contains(id)) {
+            mWatched.add(id);
+            if (isGranted(permission)) mGranted.add(id);
+            else mGranted.remove(id);
+        }
+        if (!listeners.contains(listener)) listeners.add(listener);
+        return true;
+    }
+
+    public void unsubscribe(@NonNull String permission, @NonNull Listener listener) {
+        int id = index().indexOf(permission);
+        List<Listener> listeners = id < 0 ? null : mListeners.get(id);
+        if (listeners == null) return;
+        listeners.remove(listener);
+        if (listeners.isEmpty()) {
+            mListeners.remove(id);
+            mWatched.remove(id);
+        }
+    }
+
+    /**
+     * Check watched permissions again and notify listeners of permissions which changed since last refresh
+     */
+    public void refresh() {
+        if (mWatched == null || mWatched.isEmpty()) return;
+        PermissionIndex index = index();
+        PermissionBits changed = null;
+        for (int id = mWatched.nextSetBit(0); id >= 0; id = mWatched.nextSetBit(id + 1)) {
+            boolean granted = isGranted(index.get(id));
+            if (granted != mGranted.contains(id)) {
+                if (granted) mGranted.add(id);
+                else mGranted.remove(id);
+                if (changed == null) changed = new PermissionBits(index.size());
+                changed.add(id);
+            }
+        }
+        if (changed == null) return;
+
+        for (int id = changed.nextSetBit(0); id >= 0; id = changed.nextSetBit(id + 1)) {
+            List<Listener> listeners = mListeners.get(id);
+            if (listeners == null) continue;
+            String permission = index.get(id);
+            boolean granted = mGranted.contains(id);
+            // Copy, a listener may unsubscribe while it is notified
+            for (Listener listener : new ArrayList<>(listeners)) {
+                listener.onPermissionChanged(permission, granted);
+            }
+        }
+    }
+
+    private static boolean isGranted(@NonNull String permission) {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.M || PermissionUtil.isPermissionGranted(permission);
+    }
+
+    @NonNull
+    private PermissionIndex index() {
+        if (mIndex == null) mIndex = AppPermissions.index();
+        return mIndex;
+    }
+}
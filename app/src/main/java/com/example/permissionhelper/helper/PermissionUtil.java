@@ -1,13 +1,21 @@
 package com.example.permissionhelper.helper;
 
 import android.app.Activity;
+import android.app.NotificationManager;
+import android.content.Context;
 import android.content.Intent;
+import android.content.res.Configuration;
 import android.content.pm.PackageManager;
 import android.content.pm.PermissionGroupInfo;
 import android.content.pm.PermissionInfo;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
 import android.provider.Settings;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -15,13 +23,38 @@ import androidx.annotation.RequiresApi;
 import androidx.collection.ArraySet;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.core.os.ConfigurationCompat;
 import androidx.fragment.app.Fragment;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class PermissionUtil {
+    private static final String TAG = PermissionUtil.class.getSimpleName();
+    private static final GrantStateCache GRANT_CACHE = new GrantStateCache();
+    private static final PermissionObserver OBSERVER = new PermissionObserver();
+    private static final SharedGrantState SHARED_STATE = new SharedGrantState();
+    private static final DenialHistory DENIAL_HISTORY = new DenialHistory();
+    private static final PermissionGroupCache GROUP_CACHE = new PermissionGroupCache(new PackageManagerResolver());
+    @Nullable
+    private static Locale sLocale;
+    /**
+     * Number of binder calls by {@link PermissionMetrics.Call}
+     */
+    private static final AtomicLongArray CALLS = new AtomicLongArray(PermissionMetrics.CALL_COUNT);
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    @Nullable
+    private static volatile Executor sExecutor;
+
     @NonNull
     public static List<String> getAppPermissions() {
         PackageManager pm = App.context().getPackageManager();
@@ -58,32 +91,156 @@ public class PermissionUtil {
         f.startActivityForResult(myIntent, resultCode);
     }
 
+    @RequiresApi(api = Build.VERSION_CODES.R)
+    public static boolean isGrantedManageExternalStorage() {
+        return Environment.isExternalStorageManager();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    public static boolean isGrantedInstallPackages() {
+        return App.context().getPackageManager().canRequestPackageInstalls();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public static boolean isGrantedNotificationPolicy() {
+        NotificationManager nm = (NotificationManager) App.context().getSystemService(Context.NOTIFICATION_SERVICE);
+        return nm != null && nm.isNotificationPolicyAccessGranted();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public static boolean isIgnoringBatteryOptimizations() {
+        PowerManager pm = (PowerManager) App.context().getSystemService(Context.POWER_SERVICE);
+        return pm != null && pm.isIgnoringBatteryOptimizations(App.context().getPackageName());
+    }
+
+    /**
+     * @return intent of setting screen where user grants special permission {@code type}, or app details setting
+     * for {@link PermissionHelper#TYPE_APP_DETAILS}, or null if type is unknown
+     */
+    @Nullable
+    static Intent getSpecialPermissionIntent(@NonNull Context context, int type) {
+        if (type == PermissionHelper.TYPE_APP_DETAILS) return getAppDetailsSettingsIntent(context);
+        SpecialPermission special = SpecialPermission.get(type);
+        return special == null ? null : special.createIntent(context);
+    }
+
+    /**
+     * Prefer {@link PermissionHelper#openAppDetailsSettings(int)}, it checks permissions again when user returns
+     */
     public static void openAppDetailsSettings(@NonNull Activity activity, int requestCode) {
+        activity.startActivityForResult(getAppDetailsSettingsIntent(activity), requestCode);
+    }
+
+    @NonNull
+    static Intent getAppDetailsSettingsIntent(@NonNull Context context) {
         Intent intent = new Intent(Settings.ACTION_APPLICATION_DETAILS_SETTINGS);
-        Uri uri = Uri.fromParts("package", activity.getPackageName(), null);
+        Uri uri = Uri.fromParts("package", context.getPackageName(), null);
         intent.setData(uri);
-        activity.startActivityForResult(intent, requestCode);
+        return intent;
+    }
+
+    /**
+     * Grant state cache used by {@link #isPermissionGranted(String)}, it is disabled by default
+     */
+    @NonNull
+    public static GrantStateCache getGrantCache() {
+        return GRANT_CACHE;
+    }
+
+    /**
+     * Grant state shared by processes of the app, it is disabled by default
+     */
+    @NonNull
+    public static SharedGrantState getSharedGrantState() {
+        return SHARED_STATE;
+    }
+
+    /**
+     * History of denied permissions kept across launches, it is disabled by default
+     */
+    @NonNull
+    public static DenialHistory getDenialHistory() {
+        return DENIAL_HISTORY;
+    }
+
+    /**
+     * Observer which notifies changes of grant state, it is refreshed when an activity resumes
+     */
+    @NonNull
+    public static PermissionObserver getPermissionObserver() {
+        return OBSERVER;
     }
 
     @RequiresApi(Build.VERSION_CODES.M)
     public static boolean isPermissionGranted(@NonNull final String permission) {
-        return ContextCompat.checkSelfPermission(App.context(), permission) == PackageManager.PERMISSION_GRANTED;
+        return isPermissionGranted(App.context(), permission);
+    }
+
+    static boolean isPermissionGranted(@NonNull final Context context, @NonNull final String permission) {
+        if (!GRANT_CACHE.isEnabled()) {
+            return checkSelfPermission(context, permission);
+        }
+        int state = GRANT_CACHE.get(permission);
+        if (state != GrantStateCache.UNKNOWN) {
+            return state == GrantStateCache.GRANTED;
+        }
+        int generation = GRANT_CACHE.generation();
+        boolean granted = checkSelfPermission(context, permission);
+        GRANT_CACHE.put(permission, granted, generation);
+        return granted;
+    }
+
+    private static boolean checkSelfPermission(@NonNull final Context context, @NonNull final String permission) {
+        CALLS.incrementAndGet(PermissionMetrics.CALL_CHECK_SELF_PERMISSION);
+        return ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Check grant state of all permissions in one pass.
+     * Rationale is only checked for permissions which were not granted.
+     *
+     * @param activity Activity to check rationale, rationale is not checked if it is null
+     */
+    @NonNull
+    public static GrantSnapshot checkPermissions(@Nullable final Activity activity, @NonNull final List<String> permissions) {
+        int size = permissions.size();
+        String[] names = permissions.toArray(new String[size]);
+        byte[] states = new byte[size];
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Arrays.fill(states, GrantSnapshot.STATE_GRANTED);
+            return new GrantSnapshot(names, states);
+        }
+
+        Context context = activity != null ? activity : App.context();
+        for (int i = 0; i < size; i++) {
+            if (isPermissionGranted(context, names[i])) {
+                states[i] = GrantSnapshot.STATE_GRANTED;
+            } else if (activity != null && shouldRationale(activity, names[i])) {
+                states[i] = GrantSnapshot.STATE_RATIONALE;
+            }
+        }
+        return new GrantSnapshot(names, states);
     }
 
     @Nullable
     public static CharSequence getPermissionGroupName(String permission) {
-        CharSequence groupName = null;
-        try {
-            PackageManager packageManager = App.context().getPackageManager();
-            PermissionInfo permissionInfo = packageManager.getPermissionInfo(permission, 0);
-            if (permissionInfo.group != null) {
-                PermissionGroupInfo permissionGroupInfo = packageManager.getPermissionGroupInfo(permissionInfo.group, 0);
-                groupName = permissionGroupInfo.loadLabel(packageManager);
-            }
-        } catch (PackageManager.NameNotFoundException e) {
-            e.printStackTrace();
+        return GROUP_CACHE.getGroupName(permission);
+    }
+
+    @NonNull
+    public static PermissionGroupCache getGroupCache() {
+        return GROUP_CACHE;
+    }
+
+    /**
+     * Drop cached group labels when locale was changed
+     */
+    static void onConfigurationChanged(@NonNull Configuration configuration) {
+        Locale locale = ConfigurationCompat.getLocales(configuration).get(0);
+        if (sLocale != null && !sLocale.equals(locale)) {
+            GROUP_CACHE.invalidateLabels();
         }
-        return groupName;
+        sLocale = locale;
     }
 
     @NonNull
@@ -99,8 +256,120 @@ public class PermissionUtil {
         return set;
     }
 
+    /**
+     * Set executor for background work like resolving permission group names
+     */
+    public static void setExecutor(@NonNull Executor executor) {
+        sExecutor = executor;
+    }
+
+    @NonNull
+    public static Executor getExecutor() {
+        Executor executor = sExecutor;
+        if (executor == null) {
+            synchronized (PermissionUtil.class) {
+                executor = sExecutor;
+                if (executor == null) {
+                    executor = Executors.newSingleThreadExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "PermissionHelper");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    sExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Resolve group names on {@link #getExecutor()}
+     *
+     * @param callback Invoked on main thread when names are resolved, with no names if they could not be resolved.
+     *                 It is not invoked if the future was cancelled
+     */
+    @NonNull
+    public static Future<ArraySet<CharSequence>> getPermissionsGroupNameAsync(@NonNull List<String> permissions,
+                                                                           @Nullable final GroupNameCallback callback) {
+        // Copy, caller may change the list before it is resolved
+        final List<String> copy = new ArrayList<>(permissions);
+        FutureTask<ArraySet<CharSequence>> task = new FutureTask<ArraySet<CharSequence>>(() -> getPermissionsGroupName(copy)) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled()) return;
+                try {
+                    final ArraySet<CharSequence> names = get();
+                    MAIN_HANDLER.post(() -> callback.onGroupNames(names));
+                } catch (InterruptedException | ExecutionException e) {
+                    // Caller may wait for the answer, for example to answer a rationale
+                    Log.w(TAG, "Could not resolve group names", e);
+                    MAIN_HANDLER.post(() -> callback.onGroupNames(new ArraySet<>()));
+                }
+            }
+        };
+        getExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * Resolve group names of all permissions declared in manifest in background,
+     * so later lookups are served from cache
+     */
+    public static void prefetchGroupNames() {
+        getExecutor().execute(() -> {
+            PermissionIndex index = AppPermissions.index();
+            for (int id = 0; id < index.size(); id++) {
+                GROUP_CACHE.getGroupName(index.get(id));
+            }
+        });
+    }
+
     @RequiresApi(Build.VERSION_CODES.M)
     public static boolean shouldRationale(@NonNull final Activity activity, @NonNull final String permission) {
+        CALLS.incrementAndGet(PermissionMetrics.CALL_SHOULD_SHOW_RATIONALE);
         return ActivityCompat.shouldShowRequestPermissionRationale(activity, permission);
     }
+
+    /**
+     * @return number of binder calls of kind {@code call} made by this library since start or last reset
+     */
+    public static long getCallCount(@PermissionMetrics.Call int call) {
+        return CALLS.get(call);
+    }
+
+    public static void resetCallCounts() {
+        for (int i = 0; i < PermissionMetrics.CALL_COUNT; i++) {
+            CALLS.set(i, 0);
+        }
+    }
+
+    public interface GroupNameCallback {
+        void onGroupNames(@NonNull ArraySet<CharSequence> names);
+    }
+
+    private static class PackageManagerResolver implements PermissionGroupCache.Resolver {
+        @Nullable
+        @Override
+        public String getGroup(@NonNull String permission) {
+            CALLS.incrementAndGet(PermissionMetrics.CALL_GET_PERMISSION_INFO);
+            try {
+                PermissionInfo permissionInfo = App.context().getPackageManager().getPermissionInfo(permission, 0);
+                return permissionInfo.group;
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+        }
+
+        @Nullable
+        @Override
+        public CharSequence loadLabel(@NonNull String group) {
+            try {
+                PackageManager packageManager = App.context().getPackageManager();
+                PermissionGroupInfo permissionGroupInfo = packageManager.getPermissionGroupInfo(group, 0);
+                return permissionGroupInfo.loadLabel(packageManager);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+        }
+    }
 }
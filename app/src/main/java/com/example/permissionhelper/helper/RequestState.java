@@ -0,0 +1,22 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Running request given to a {@link PermissionEngine}, helper itself is found by {@code handle}
+ * in {@link HelperRegistry} when result comes.
+ */
+final class RequestState {
+    final int handle;
+    final int type;
+    final int requestCode;
+    @NonNull
+    final String[] permissions;
+
+    RequestState(int handle, int type, int requestCode, @NonNull String[] permissions) {
+        this.handle = handle;
+        this.type = type;
+        this.requestCode = requestCode;
+        this.permissions = permissions;
+    }
+}
@@ -0,0 +1,340 @@
+package com.example.permissionhelper.helper;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Opt-in grant state shared by all processes of the app through a memory mapped file, so a process
+ * can read state observed by another one without IPC or binder calls. Enable it in every process.
+ * <p>
+ * Layout: header (magic, format, count, sequence, hash of permission table) then one state byte
+ * per permission id in manifest permission index. Writers take a file lock and bump the sequence
+ * before and after writing, readers retry while it is odd or changed, like a seqlock. A writer starts
+ * from an even sequence, so a process killed while writing does not leave it odd.
+ * The sequence also gives {@link #getVersion()} to detect changes.
+ * <p>
+ * Every process holds a shared lock on a byte past the table while it lives. A process which gets it
+ * exclusively is the only one alive, so it clears the table: user may have changed permissions in setting
+ * while no process was running, which also kills processes of the app when a permission is revoked.
+ * <p>
+ * File is mapped, synced and written on {@link PermissionUtil#getExecutor()}, a lock may wait for another
+ * process. Nothing is known until it is mapped, mapping starts when state is enabled or first used.
+ */
+public final class SharedGrantState {
+    private static final String TAG = SharedGrantState.class.getSimpleName();
+    private static final String FILE_NAME = "permission_state.bin";
+
+    public static final int UNKNOWN = -1;
+    public static final int DENIED = 0;
+    public static final int GRANTED = 1;
+
+    private static final int MAGIC = 0x50484753;
+    private static final int FORMAT = 1;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_FORMAT = 4;
+    private static final int OFFSET_COUNT = 8;
+    private static final int OFFSET_SEQUENCE = 16;
+    private static final int OFFSET_TABLE_HASH = 24;
+    private static final int HEADER_SIZE = 32;
+    /**
+     * Writers lock this range, it does not overlap {@link #OFFSET_ALIVE_LOCK}
+     */
+    private static final long WRITE_LOCK_SIZE = HEADER_SIZE;
+    /**
+     * Byte locked shared by every process while it lives, it is far past the table
+     */
+    private static final long OFFSET_ALIVE_LOCK = Long.MAX_VALUE - 1;
+    private static final byte STATE_KNOWN = 1;
+    private static final byte STATE_GRANTED = 1 << 1;
+    private static final int MAX_READ_RETRY = 64;
+
+    private volatile boolean mEnabled;
+    @Nullable
+    private PermissionIndex mIndex;
+    private long mTableHash;
+    @Nullable
+    private FileChannel mChannel;
+    @Nullable
+    private volatile MappedByteBuffer mBuffer;
+    /**
+     * Held until process dies, it is never released
+     */
+    @Nullable
+    private FileLock mAliveLock;
+    private boolean mOpenStarted;
+    /**
+     * Tasks in order, a later write may not pass an earlier one on a parallel executor
+     */
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mRunning;
+
+    SharedGrantState() {
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (enabled) {
+            synchronized (this) {
+                startOpen();
+            }
+        }
+    }
+
+    /**
+     * @return version of shared state, it changes every time a process writes it, or -1 if it is not available
+     */
+    public long getVersion() {
+        MappedByteBuffer buffer = buffer();
+        if (buffer == null) return -1;
+        return buffer.getLong(OFFSET_SEQUENCE) >>> 1;
+    }
+
+    /**
+     * @return {@link #GRANTED}, {@link #DENIED} or {@link #UNKNOWN} if no process has stored it
+     */
+    public int getState(@NonNull final String permission) {
+        MappedByteBuffer buffer = buffer();
+        if (buffer == null) return UNKNOWN;
+        int id = index().indexOf(permission);
+        if (id < 0) return UNKNOWN;
+        for (int i = 0; i < MAX_READ_RETRY; i++) {
+            long sequence = buffer.getLong(OFFSET_SEQUENCE);
+            if ((sequence & 1) != 0) continue;
+            boolean valid = isHeaderValid(buffer);
+            byte state = valid ? buffer.get(HEADER_SIZE + id) : 0;
+            if (buffer.getLong(OFFSET_SEQUENCE) != sequence) continue;
+            if ((state & STATE_KNOWN) == 0) return UNKNOWN;
+            return (state & STATE_GRANTED) != 0 ? GRANTED : DENIED;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @return shared state of {@code permission}, it is checked and stored if no process has stored it
+     */
+    public boolean isGranted(@NonNull final String permission) {
+        int state = getState(permission);
+        if (state != UNKNOWN) return state == GRANTED;
+        boolean granted = Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || PermissionUtil.isPermissionGranted(App.context(), permission);
+        int id = index().indexOf(permission);
+        if (id >= 0) enqueueWrite(new int[]{id}, new boolean[]{granted});
+        return granted;
+    }
+
+    /**
+     * Store answer of system dialog
+     */
+    void put(@NonNull String[] permissions, @NonNull int[] grantResults) {
+        if (!mEnabled) return;
+        PermissionIndex index = index();
+        int[] ids = new int[permissions.length];
+        boolean[] granted = new boolean[permissions.length];
+        for (int i = 0; i < permissions.length; i++) {
+            ids[i] = index.indexOf(permissions[i]);
+            granted[i] = grantResults[i] == PermissionClassifier.PERMISSION_GRANTED;
+        }
+        enqueueWrite(ids, granted);
+    }
+
+    /**
+     * Check stored permissions again on executor, for example when user may have changed them in setting.
+     * Version only changes if a state changed.
+     */
+    void sync(@NonNull Context context) {
+        if (!mEnabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return;
+        Context app = context.getApplicationContext();
+        synchronized (this) {
+            startOpen();
+            enqueue(() -> syncNow(app));
+        }
+    }
+
+    private void syncNow(@NonNull Context context) {
+        MappedByteBuffer buffer = mBuffer;
+        FileChannel channel = mChannel;
+        if (buffer == null || channel == null || !isHeaderValid(buffer)) return;
+        PermissionIndex index = index();
+        int[] ids = null;
+        boolean[] granted = null;
+        int count = 0;
+        for (int id = 0; id < index.size(); id++) {
+            byte state = buffer.get(HEADER_SIZE + id);
+            if ((state & STATE_KNOWN) == 0) continue;
+            boolean now = PermissionUtil.isPermissionGranted(context, index.get(id));
+            if (now == ((state & STATE_GRANTED) != 0)) continue;
+            if (ids == null) {
+                ids = new int[index.size()];
+                granted = new boolean[index.size()];
+            }
+            ids[count] = id;
+            granted[count++] = now;
+        }
+        if (count > 0) write(channel, buffer, Arrays.copyOf(ids, count), Arrays.copyOf(granted, count));
+    }
+
+    private void enqueueWrite(@NonNull int[] ids, @NonNull boolean[] granted) {
+        if (!mEnabled) return;
+        synchronized (this) {
+            startOpen();
+            enqueue(() -> {
+                MappedByteBuffer buffer = mBuffer;
+                FileChannel channel = mChannel;
+                if (buffer != null && channel != null) write(channel, buffer, ids, granted);
+            });
+        }
+    }
+
+    /**
+     * Write states of {@code ids}, or clear the table if {@code ids} is null
+     */
+    private void write(@NonNull FileChannel channel, @NonNull MappedByteBuffer buffer,
+                       @Nullable int[] ids, @Nullable boolean[] granted) {
+        FileLock lock = null;
+        try {
+            // Lock also serializes writers of other processes
+            lock = channel.lock(0, WRITE_LOCK_SIZE, false);
+            // A writer which died while writing left it odd, readers would wait for it forever
+            long sequence = buffer.getLong(OFFSET_SEQUENCE) & ~1L;
+            boolean header = ids == null || !isHeaderValid(buffer);
+            // Table is cleared, nobody reads versions of old one
+            if (header) sequence = 0;
+            buffer.putLong(OFFSET_SEQUENCE, sequence + 1);
+            if (header) writeHeader(buffer);
+            if (ids != null && granted != null) {
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] < 0) continue;
+                    buffer.put(HEADER_SIZE + ids[i], (byte) (STATE_KNOWN | (granted[i] ? STATE_GRANTED : 0)));
+                }
+            }
+            buffer.putLong(OFFSET_SEQUENCE, sequence + 2);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write shared grant state", e);
+        } finally {
+            if (lock != null) {
+                try {
+                    lock.release();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private boolean isHeaderValid(@NonNull MappedByteBuffer buffer) {
+        return buffer.getInt(OFFSET_MAGIC) == MAGIC
+                && buffer.getInt(OFFSET_FORMAT) == FORMAT
+                && buffer.getInt(OFFSET_COUNT) == index().size()
+                && buffer.getLong(OFFSET_TABLE_HASH) == mTableHash;
+    }
+
+    /**
+     * Header is written on first use, or when app was updated with other permissions
+     */
+    private void writeHeader(@NonNull MappedByteBuffer buffer) {
+        int count = index().size();
+        for (int id = 0; id < count; id++) {
+            buffer.put(HEADER_SIZE + id, (byte) 0);
+        }
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        buffer.putInt(OFFSET_FORMAT, FORMAT);
+        buffer.putInt(OFFSET_COUNT, count);
+        buffer.putLong(OFFSET_TABLE_HASH, mTableHash);
+    }
+
+    /**
+     * @return mapped file, or null if it is not mapped yet, mapping is started then
+     */
+    @Nullable
+    private MappedByteBuffer buffer() {
+        MappedByteBuffer buffer = mBuffer;
+        if (buffer == null && mEnabled) {
+            synchronized (this) {
+                startOpen();
+            }
+        }
+        return buffer;
+    }
+
+    private void startOpen() {
+        if (mOpenStarted) return;
+        mOpenStarted = true;
+        index();
+        enqueue(this::open);
+    }
+
+    /**
+     * Map file on executor, clear it if no other process is alive
+     */
+    private void open() {
+        PermissionIndex index = index();
+        File file = new File(App.context().getFilesDir(), FILE_NAME);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + index.size());
+            FileLock first = channel.tryLock(OFFSET_ALIVE_LOCK, 1, false);
+            if (first != null) {
+                // No other process is alive, stored state may be stale
+                write(channel, buffer, null, null);
+                first.release();
+            }
+            mAliveLock = channel.lock(OFFSET_ALIVE_LOCK, 1, true);
+            mChannel = channel;
+            mBuffer = buffer;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not map shared grant state", e);
+        }
+    }
+
+    private void enqueue(@NonNull Runnable task) {
+        mTasks.add(task);
+        if (mRunning) return;
+        mRunning = true;
+        PermissionUtil.getExecutor().execute(this::drainTasks);
+    }
+
+    private void drainTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mRunning = false;
+                    return;
+                }
+            }
+            task.run();
+        }
+    }
+
+    @NonNull
+    private synchronized PermissionIndex index() {
+        if (mIndex == null) {
+            PermissionIndex index = AppPermissions.index();
+            long hash = 1125899906842597L;
+            for (int id = 0; id < index.size(); id++) {
+                hash = 31 * hash + index.get(id).hashCode();
+            }
+            mTableHash = hash;
+            mIndex = index;
+        }
+        return mIndex;
+    }
+}
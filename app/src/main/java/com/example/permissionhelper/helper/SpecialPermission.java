@@ -0,0 +1,124 @@
+package com.example.permissionhelper.helper;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.Settings;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Descriptor of a special permission: the manifest permission, the setting screen where user grants it
+ * and how to check it. Descriptors are registered by {@link PermissionHelper.SpecialPermissions} type.
+ */
+public final class SpecialPermission {
+
+    interface GrantCheck {
+        boolean isGranted();
+    }
+
+    private static final SparseArray<SpecialPermission> REGISTRY = new SparseArray<>();
+
+    static {
+        register();
+    }
+
+    private final int mType;
+    @NonNull
+    private final String mPermission;
+    @NonNull
+    private final String mAction;
+    /**
+     * Setting screen is opened for this app only
+     */
+    private final boolean mPackageUri;
+    /**
+     * Permission is granted at install time below this version
+     */
+    private final int mMinSdk;
+    @NonNull
+    private final GrantCheck mCheck;
+
+    private SpecialPermission(int type, @NonNull String permission, @NonNull String action, boolean packageUri,
+                              int minSdk, @NonNull GrantCheck check) {
+        mType = type;
+        mPermission = permission;
+        mAction = action;
+        mPackageUri = packageUri;
+        mMinSdk = minSdk;
+        mCheck = check;
+    }
+
+    // Every check only runs from its minSdk, see isGranted
+    @SuppressLint("NewApi")
+    private static void register() {
+        put(new SpecialPermission(PermissionHelper.TYPE_WRITE_SETTINGS, Manifest.permission.WRITE_SETTINGS,
+                Settings.ACTION_MANAGE_WRITE_SETTINGS, false, Build.VERSION_CODES.M,
+                PermissionUtil::isGrantedWriteSettings));
+        put(new SpecialPermission(PermissionHelper.TYPE_DRAW_OVERLAYS, Manifest.permission.SYSTEM_ALERT_WINDOW,
+                Settings.ACTION_MANAGE_OVERLAY_PERMISSION, false, Build.VERSION_CODES.M,
+                PermissionUtil::isGrantedDrawOverlays));
+        put(new SpecialPermission(PermissionHelper.TYPE_MANAGE_EXTERNAL_STORAGE, Manifest.permission.MANAGE_EXTERNAL_STORAGE,
+                Settings.ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION, true, Build.VERSION_CODES.R,
+                PermissionUtil::isGrantedManageExternalStorage));
+        put(new SpecialPermission(PermissionHelper.TYPE_INSTALL_PACKAGES, Manifest.permission.REQUEST_INSTALL_PACKAGES,
+                Settings.ACTION_MANAGE_UNKNOWN_APP_SOURCES, true, Build.VERSION_CODES.O,
+                PermissionUtil::isGrantedInstallPackages));
+        put(new SpecialPermission(PermissionHelper.TYPE_NOTIFICATION_POLICY, Manifest.permission.ACCESS_NOTIFICATION_POLICY,
+                Settings.ACTION_NOTIFICATION_POLICY_ACCESS_SETTINGS, false, Build.VERSION_CODES.M,
+                PermissionUtil::isGrantedNotificationPolicy));
+        put(new SpecialPermission(PermissionHelper.TYPE_IGNORE_BATTERY_OPTIMIZATIONS,
+                Manifest.permission.REQUEST_IGNORE_BATTERY_OPTIMIZATIONS,
+                Settings.ACTION_REQUEST_IGNORE_BATTERY_OPTIMIZATIONS, true, Build.VERSION_CODES.M,
+                PermissionUtil::isIgnoringBatteryOptimizations));
+    }
+
+    private static void put(@NonNull SpecialPermission permission) {
+        REGISTRY.put(permission.mType, permission);
+    }
+
+    /**
+     * @return descriptor of special permission {@code type}, or null if type is unknown
+     */
+    @Nullable
+    public static SpecialPermission get(int type) {
+        return REGISTRY.get(type);
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    @NonNull
+    public String getPermission() {
+        return mPermission;
+    }
+
+    /**
+     * @return true if permission is granted, or it does not need to be requested on this version
+     */
+    public boolean isGranted() {
+        return Build.VERSION.SDK_INT < mMinSdk || mCheck.isGranted();
+    }
+
+    public int getMinSdk() {
+        return mMinSdk;
+    }
+
+    /**
+     * @return intent of setting screen where user grants this permission
+     */
+    @NonNull
+    public Intent createIntent(@NonNull Context context) {
+        Intent intent = new Intent(mAction);
+        if (mPackageUri) {
+            intent.setData(Uri.fromParts("package", context.getPackageName(), null));
+        }
+        return intent;
+    }
+}
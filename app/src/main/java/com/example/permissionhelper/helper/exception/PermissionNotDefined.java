@@ -2,12 +2,23 @@ package com.example.permissionhelper.helper.exception;
 
 import androidx.annotation.NonNull;
 
+import java.util.Collections;
+import java.util.List;
+
 public class PermissionNotDefined extends PermissionException {
     private String mMessage;
+    @NonNull
+    private List<String> mPermissions;
 
     public PermissionNotDefined(@NonNull final String message) {
         super(message);
         mMessage = message;
+        mPermissions = Collections.emptyList();
+    }
+
+    public PermissionNotDefined(@NonNull final List<String> permissions) {
+        this("Permissions did not defined in manifest: " + permissions);
+        mPermissions = Collections.unmodifiableList(permissions);
     }
 
     @NonNull
@@ -15,4 +26,12 @@ public class PermissionNotDefined extends PermissionException {
     public String getMessage() {
         return mMessage;
     }
+
+    /**
+     * @return permissions which were not declared in manifest
+     */
+    @NonNull
+    public List<String> getPermissions() {
+        return mPermissions;
+    }
 }
@@ -0,0 +1,26 @@
+package com.example.permissionhelper.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic permission names for benchmarks
+ */
+final class BenchmarkPermissions {
+    static final int MAX_SIZE = 200;
+
+    private BenchmarkPermissions() {
+    }
+
+    static List<String> names(int size) {
+        List<String> names = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            names.add(String.format("android.permission.BENCHMARK_%03d", i));
+        }
+        return names;
+    }
+
+    static PermissionIndex index() {
+        return new PermissionIndex(names(MAX_SIZE));
+    }
+}
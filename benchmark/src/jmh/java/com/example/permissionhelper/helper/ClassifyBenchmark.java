@@ -0,0 +1,71 @@
+package com.example.permissionhelper.helper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Classification done by PermissionFlow before a request and after system dialog answers it
+ */
+@State(Scope.Benchmark)
+public class ClassifyBenchmark {
+
+    @Param({"1", "5", "10", "25", "50", "100", "200"})
+    public int size;
+
+    private PermissionIndex mIndex;
+    private PermissionChecker mChecker;
+    private PermissionBits mPermissions;
+    private PermissionBits mGranted;
+    private PermissionBits mRequest;
+    private PermissionBits mRationale;
+    private PermissionBits mDenied;
+    private PermissionBits mDeniedForever;
+    private String[] mResultPermissions;
+    private int[] mGrantResults;
+
+    @Setup
+    public void setup() {
+        mIndex = BenchmarkPermissions.index();
+        mChecker = new FakePermissionChecker(mIndex);
+        int capacity = mIndex.size();
+        mPermissions = new PermissionBits(capacity);
+        for (int id = 0; id < size; id++) {
+            mPermissions.add(id);
+        }
+        mGranted = new PermissionBits(capacity);
+        mRequest = new PermissionBits(capacity);
+        mRationale = new PermissionBits(capacity);
+        mDenied = new PermissionBits(capacity);
+        mDeniedForever = new PermissionBits(capacity);
+
+        PermissionClassifier.classify(mPermissions, mIndex, mChecker, false, mGranted, mRequest, mRationale);
+        mResultPermissions = mRequest.toArray(mIndex);
+        mGrantResults = new int[mResultPermissions.length];
+        for (int i = 0; i < mGrantResults.length; i++) {
+            mGrantResults[i] = i % 2 == 0 ? PermissionClassifier.PERMISSION_GRANTED : -1;
+        }
+    }
+
+    @Benchmark
+    public void classify(Blackhole blackhole) {
+        mGranted.clear();
+        mRequest.clear();
+        mRationale.clear();
+        PermissionClassifier.classify(mPermissions, mIndex, mChecker, false, mGranted, mRequest, mRationale);
+        blackhole.consume(mRequest);
+    }
+
+    @Benchmark
+    public void classifyResult(Blackhole blackhole) {
+        mGranted.clear();
+        mDenied.clear();
+        mDeniedForever.clear();
+        PermissionClassifier.classifyResult(mResultPermissions, mGrantResults, mIndex, mRequest, mChecker,
+                mGranted, mDenied, mDeniedForever);
+        blackhole.consume(mDeniedForever);
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.permissionhelper.helper;
+
+/**
+ * Deterministic checker in place of Android calls: every third permission is granted
+ * and every other not granted permission needs rationale
+ */
+final class FakePermissionChecker implements PermissionChecker {
+    private final PermissionIndex mIndex;
+
+    FakePermissionChecker(PermissionIndex index) {
+        mIndex = index;
+    }
+
+    @Override
+    public boolean isGranted(String permission) {
+        return mIndex.indexOf(permission) % 3 == 0;
+    }
+
+    @Override
+    public boolean shouldShowRationale(String permission) {
+        return mIndex.indexOf(permission) % 2 == 0;
+    }
+
+    @Override
+    public boolean isSpecialGranted(int type) {
+        return false;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.permissionhelper.helper;
+
+import com.example.permissionhelper.helper.simulator.SimulatedDevice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Many screens run a full request flow at once on a {@link SimulatedDevice}: filter, rationale,
+ * system dialog and callback. Run with {@code -prof gc} to see allocation per flow.
+ */
+@State(Scope.Benchmark)
+public class FlowBenchmark {
+
+    @Param({"1", "5", "10", "25", "50", "100", "200"})
+    public int size;
+
+    @Param({"1000"})
+    public int screens;
+
+    private PermissionIndex mIndex;
+    private PermissionBits mPermissions;
+    private List<String> mNames;
+
+    @Setup
+    public void setup() {
+        mIndex = BenchmarkPermissions.index();
+        mNames = BenchmarkPermissions.names(size);
+        mPermissions = new PermissionBits(mIndex.size());
+        for (int id = 0; id < size; id++) {
+            mPermissions.add(id);
+        }
+    }
+
+    @Benchmark
+    public int flows() {
+        SimulatedDevice device = new SimulatedDevice(mIndex);
+        for (int i = 0; i < mNames.size(); i++) {
+            device.setAnswer(mNames.get(i), i % 3 == 0 ? SimulatedDevice.ANSWER_GRANT :
+                    i % 3 == 1 ? SimulatedDevice.ANSWER_DENY : SimulatedDevice.ANSWER_DENY_FOREVER);
+        }
+        SimulatedDevice.Screen[] all = new SimulatedDevice.Screen[screens];
+        for (int i = 0; i < screens; i++) {
+            all[i] = device.newScreen();
+            all[i].getFlow().setExplain(true);
+            all[i].getFlow().requestRuntime(i, mPermissions, null);
+        }
+        device.runPending();
+        int results = 0;
+        for (SimulatedDevice.Screen screen : all) {
+            results += screen.getResultCount();
+        }
+        return results;
+    }
+}
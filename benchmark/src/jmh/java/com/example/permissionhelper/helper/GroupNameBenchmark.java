@@ -0,0 +1,55 @@
+package com.example.permissionhelper.helper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+
+/**
+ * Group name lookups through {@link PermissionGroupCache}, package manager is replaced by a fake resolver
+ */
+@State(Scope.Benchmark)
+public class GroupNameBenchmark {
+    private static final int GROUP_COUNT = 12;
+
+    @Param({"1", "5", "10", "25", "50", "100", "200"})
+    public int size;
+
+    private List<String> mPermissions;
+    private PermissionGroupCache mCache;
+
+    @Setup
+    public void setup() {
+        mPermissions = BenchmarkPermissions.names(size);
+        mCache = new PermissionGroupCache(new FakeResolver());
+    }
+
+    @Benchmark
+    public void lookup(Blackhole blackhole) {
+        for (int i = 0; i < mPermissions.size(); i++) {
+            blackhole.consume(mCache.getGroupName(mPermissions.get(i)));
+        }
+    }
+
+    @Benchmark
+    public void lookupCold(Blackhole blackhole) {
+        mCache.invalidate();
+        lookup(blackhole);
+    }
+
+    private static final class FakeResolver implements PermissionGroupCache.Resolver {
+        @Override
+        public String getGroup(String permission) {
+            return "android.permission-group.BENCHMARK_" + Math.abs(permission.hashCode() % GROUP_COUNT);
+        }
+
+        @Override
+        public CharSequence loadLabel(String group) {
+            return group.substring(group.lastIndexOf('.') + 1);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.permissionhelper.helper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@State(Scope.Benchmark)
+public class ListUtilsBenchmark {
+
+    @Param({"1", "5", "10", "25", "50", "100", "200"})
+    public int size;
+
+    private List<String> mContainer;
+    private List<String> mSublist;
+
+    @Setup
+    public void setup() {
+        mContainer = BenchmarkPermissions.names(size);
+        // Worst case, every item is found at the end of what is left
+        mSublist = new ArrayList<>(mContainer);
+        Collections.reverse(mSublist);
+    }
+
+    @Benchmark
+    public boolean isSubList() {
+        return ListUtils.isSubList(mContainer, mSublist);
+    }
+}
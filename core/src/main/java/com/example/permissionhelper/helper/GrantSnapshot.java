@@ -0,0 +1,129 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable grant state of a set of permissions, taken in one pass by {@link PermissionChecker#check(String[], boolean)}
+ */
+public final class GrantSnapshot {
+    static final byte STATE_GRANTED = 1;
+    static final byte STATE_RATIONALE = 1 << 1;
+
+    @NonNull
+    private final String[] mPermissions;
+    @NonNull
+    private final byte[] mStates;
+    @NonNull
+    private final List<String> mGranted;
+    @NonNull
+    private final List<String> mNotGranted;
+    @NonNull
+    private final List<String> mRationale;
+
+    GrantSnapshot(@NonNull String[] permissions, @NonNull byte[] states) {
+        mPermissions = permissions;
+        mStates = states;
+        List<String> granted = new ArrayList<>(permissions.length);
+        List<String> notGranted = new ArrayList<>(permissions.length);
+        List<String> rationale = new ArrayList<>(permissions.length);
+        for (int i = 0; i < permissions.length; i++) {
+            if ((states[i] & STATE_GRANTED) != 0) {
+                granted.add(permissions[i]);
+            } else {
+                notGranted.add(permissions[i]);
+                if ((states[i] & STATE_RATIONALE) != 0) rationale.add(permissions[i]);
+            }
+        }
+        mGranted = Collections.unmodifiableList(granted);
+        mNotGranted = Collections.unmodifiableList(notGranted);
+        mRationale = Collections.unmodifiableList(rationale);
+    }
+
+    /**
+     * Snapshot taken by single checks of {@code checker}
+     */
+    @NonNull
+    static GrantSnapshot check(@NonNull PermissionChecker checker, @NonNull String[] permissions, boolean rationale) {
+        byte[] states = new byte[permissions.length];
+        for (int i = 0; i < permissions.length; i++) {
+            if (checker.isGranted(permissions[i])) {
+                states[i] = STATE_GRANTED;
+            } else if (rationale && checker.shouldShowRationale(permissions[i])) {
+                states[i] = STATE_RATIONALE;
+            }
+        }
+        return new GrantSnapshot(permissions, states);
+    }
+
+    public int size() {
+        return mPermissions.length;
+    }
+
+    @NonNull
+    public String getPermission(int position) {
+        return mPermissions[position];
+    }
+
+    public boolean isGrantedAt(int position) {
+        return (mStates[position] & STATE_GRANTED) != 0;
+    }
+
+    public boolean shouldRationaleAt(int position) {
+        return (mStates[position] & STATE_RATIONALE) != 0;
+    }
+
+    /**
+     * @return true if {@code permission} is in this snapshot and was granted
+     */
+    public boolean isGranted(@NonNull final String permission) {
+        int position = indexOf(permission);
+        return position >= 0 && isGrantedAt(position);
+    }
+
+    /**
+     * @return true if {@code permission} is in this snapshot and rationale should be shown for it
+     */
+    public boolean shouldRationale(@NonNull final String permission) {
+        int position = indexOf(permission);
+        return position >= 0 && shouldRationaleAt(position);
+    }
+
+    public boolean isAllGranted() {
+        return mNotGranted.isEmpty();
+    }
+
+    @NonNull
+    public List<String> getPermissions() {
+        return Collections.unmodifiableList(Arrays.asList(mPermissions));
+    }
+
+    @NonNull
+    public List<String> getGranted() {
+        return mGranted;
+    }
+
+    @NonNull
+    public List<String> getNotGranted() {
+        return mNotGranted;
+    }
+
+    /**
+     * @return permissions were not granted and rationale should be shown for them
+     */
+    @NonNull
+    public List<String> getRationale() {
+        return mRationale;
+    }
+
+    private int indexOf(@NonNull final String permission) {
+        for (int i = 0; i < mPermissions.length; i++) {
+            if (mPermissions[i].equals(permission)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.permissionhelper.helper;
+
+/**
+ * Histogram of durations with fixed power of two buckets in microseconds.
+ * Bucket 0 counts durations under 1 microsecond, bucket {@code i} counts durations in [2^(i-1), 2^i) microseconds
+ * and the last bucket counts everything longer. Recording does not allocate.
+ */
+public final class LatencyHistogram {
+    public static final int BUCKET_COUNT = 32;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= BUCKET_COUNT) bucket = BUCKET_COUNT - 1;
+        mCounts[bucket]++;
+        mCount++;
+        mTotalNanos += nanos;
+        if (nanos > mMaxNanos) mMaxNanos = nanos;
+    }
+
+    public long getCount(int bucket) {
+        return mCounts[bucket];
+    }
+
+    /**
+     * @return exclusive upper bound of {@code bucket} in microseconds, {@link Long#MAX_VALUE} for the last bucket
+     */
+    public static long getUpperBoundMicros(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getTotalNanos() {
+        return mTotalNanos;
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    /**
+     * @param percentile in range [0, 100]
+     * @return upper bound in microseconds of bucket which holds {@code percentile}, or 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        if (mCount == 0) return 0;
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank && seen > 0) return getUpperBoundMicros(i);
+        }
+        return getUpperBoundMicros(BUCKET_COUNT - 1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of permission ids from a {@link PermissionIndex}, stored as a bitset.
+ * Up to 64 declared permissions fit in a single word.
+ */
+public final class PermissionBits {
+    private static final int WORD_SHIFT = 6;
+
+    @NonNull
+    private final long[] mWords;
+
+    public PermissionBits(int capacity) {
+        mWords = new long[Math.max(1, (capacity + 63) >>> WORD_SHIFT)];
+    }
+
+    public PermissionBits(@NonNull final PermissionBits other) {
+        mWords = other.mWords.clone();
+    }
+
+    public void add(int id) {
+        mWords[id >>> WORD_SHIFT] |= 1L << id;
+    }
+
+    public void remove(int id) {
+        mWords[id >>> WORD_SHIFT] &= ~(1L << id);
+    }
+
+    public boolean contains(int id) {
+        return id >= 0
+                && (id >>> WORD_SHIFT) < mWords.length
+                && (mWords[id >>> WORD_SHIFT] & (1L << id)) != 0;
+    }
+
+    public boolean containsAll(@NonNull final PermissionBits other) {
+        for (int i = 0; i < other.mWords.length; i++) {
+            long word = i < mWords.length ? mWords[i] : 0;
+            if ((other.mWords[i] & ~word) != 0) return false;
+        }
+        return true;
+    }
+
+    public void addAll(@NonNull final PermissionBits other) {
+        for (int i = 0; i < mWords.length && i < other.mWords.length; i++) {
+            mWords[i] |= other.mWords[i];
+        }
+    }
+
+    public void retainAll(@NonNull final PermissionBits other) {
+        for (int i = 0; i < mWords.length; i++) {
+            mWords[i] &= i < other.mWords.length ? other.mWords[i] : 0;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mWords, 0);
+    }
+
+    public boolean isEmpty() {
+        for (long word : mWords) {
+            if (word != 0) return false;
+        }
+        return true;
+    }
+
+    public int size() {
+        int count = 0;
+        for (long word : mWords) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return the first id set at or after {@code from}, or -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        if (from < 0) from = 0;
+        int i = from >>> WORD_SHIFT;
+        if (i >= mWords.length) return -1;
+        long word = mWords[i] & (-1L << from);
+        while (true) {
+            if (word != 0) return (i << WORD_SHIFT) + Long.numberOfTrailingZeros(word);
+            if (++i == mWords.length) return -1;
+            word = mWords[i];
+        }
+    }
+
+    @NonNull
+    public String[] toArray(@NonNull final PermissionIndex index) {
+        String[] result = new String[size()];
+        int n = 0;
+        for (int id = nextSetBit(0); id >= 0; id = nextSetBit(id + 1)) {
+            result[n++] = index.get(id);
+        }
+        return result;
+    }
+
+    /**
+     * @return read only view over this set, names are resolved from {@code index} when they are read
+     */
+    @NonNull
+    public List<String> asList(@NonNull final PermissionIndex index) {
+        return new ListView(this, index);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PermissionBits)) return false;
+        return Arrays.equals(mWords, ((PermissionBits) o).mWords);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mWords);
+    }
+
+    private static final class ListView extends AbstractList<String> {
+        private final PermissionBits mBits;
+        private final PermissionIndex mIndex;
+
+        ListView(@NonNull PermissionBits bits, @NonNull PermissionIndex index) {
+            mBits = bits;
+            mIndex = index;
+        }
+
+        @Override
+        public String get(int position) {
+            if (position < 0) throw new IndexOutOfBoundsException("Index: " + position);
+            int id = mBits.nextSetBit(0);
+            for (int i = 0; i < position && id >= 0; i++) {
+                id = mBits.nextSetBit(id + 1);
+            }
+            if (id < 0) throw new IndexOutOfBoundsException("Index: " + position);
+            return mIndex.get(id);
+        }
+
+        @Override
+        public int size() {
+            return mBits.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && mBits.contains(mIndex.indexOf((String) o));
+        }
+
+        @NonNull
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int mNext = mBits.nextSetBit(0);
+
+                @Override
+                public boolean hasNext() {
+                    return mNext >= 0;
+                }
+
+                @Override
+                public String next() {
+                    if (mNext < 0) throw new NoSuchElementException();
+                    String p = mIndex.get(mNext);
+                    mNext = mBits.nextSetBit(mNext + 1);
+                    return p;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Source of grant and rationale state of permissions, implemented by platform adapter
+ */
+public interface PermissionChecker {
+    boolean isGranted(@NonNull String permission);
+
+    boolean shouldShowRationale(@NonNull String permission);
+
+    /**
+     * Check grant state of {@code permissions} in one pass, rationale only of permissions which were not granted
+     *
+     * @param rationale false to skip rationale checks
+     */
+    @NonNull
+    default GrantSnapshot check(@NonNull String[] permissions, boolean rationale) {
+        return GrantSnapshot.check(this, permissions, rationale);
+    }
+
+    /**
+     * @return true if special permission {@code type} is granted, or it does not need to be requested
+     */
+    boolean isSpecialGranted(int type);
+
+    /**
+     * @return true if {@code permission} is known to be denied forever, system dialog would deny it without asking
+     */
+    default boolean isDeniedForever(@NonNull String permission) {
+        return false;
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Classification of permissions before and after a request. It only depends on a {@link PermissionChecker},
+ * so it also runs off device.
+ */
+final class PermissionClassifier {
+    /**
+     * Same value as {@code PackageManager.PERMISSION_GRANTED}
+     */
+    static final int PERMISSION_GRANTED = 0;
+
+    private PermissionClassifier() {
+    }
+
+    /**
+     * Put granted {@code permissions} in {@code granted}, others in {@code request}.
+     * Permissions to request which need explanation are also put in {@code rationale},
+     * rationale is not checked when {@code explain} is true because all of them are explained.
+     * State is taken by one {@link PermissionChecker#check(String[], boolean)}.
+     */
+    static void classify(@NonNull PermissionBits permissions, @NonNull PermissionIndex index,
+                         @NonNull PermissionChecker checker, boolean explain, @NonNull PermissionBits granted,
+                         @NonNull PermissionBits request, @NonNull PermissionBits rationale) {
+        // Snapshot follows order of ids
+        GrantSnapshot snapshot = checker.check(permissions.toArray(index), !explain);
+        int position = 0;
+        for (int id = permissions.nextSetBit(0); id >= 0; id = permissions.nextSetBit(id + 1), position++) {
+            if (snapshot.isGrantedAt(position)) {
+                granted.add(id);
+            } else {
+                request.add(id);
+                if (explain || snapshot.shouldRationaleAt(position)) {
+                    rationale.add(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Classify answer of system dialog, only permissions in {@code request} are taken.
+     * A denied permission without rationale was denied forever.
+     */
+    static void classifyResult(@NonNull String[] permissions, @NonNull int[] grantResults,
+                               @NonNull PermissionIndex index, @NonNull PermissionBits request,
+                               @NonNull PermissionChecker checker, @NonNull PermissionBits granted,
+                               @NonNull PermissionBits denied, @NonNull PermissionBits deniedForever) {
+        int id;
+        for (int i = 0; i < permissions.length; i++) {
+            id = index.indexOf(permissions[i]);
+            if (request.contains(id)) {
+                if (grantResults[i] == PERMISSION_GRANTED) {
+                    granted.add(id);
+                } else if (checker.shouldShowRationale(permissions[i])) {
+                    denied.add(id);
+                } else {
+                    deniedForever.add(id);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * State machine of permission requests without platform dependencies.
+ * One flow runs at a time: filter, rationale, system dialog or setting screen, then callback.
+ * A runtime request with same permissions as the running one shares its result,
+ * other runtime requests are merged into one pending flow, special requests are queued by type.
+ * Grant state comes from a {@link PermissionChecker} and user is asked through a {@link PermissionRequester}.
+ */
+public final class PermissionFlow {
+    public static final int TYPE_RUNTIME = 0x01;
+
+    @FunctionalInterface
+    public interface Listener {
+        void onResult(@NonNull PermissionResult result);
+    }
+
+    public interface Callback {
+        /**
+         * Explain {@code permissions} to user, then answer by {@link #continues(int, boolean)}.
+         * Until it is answered same request shares it and other requests wait, {@link #cancel()} finishes it
+         * if it will not be answered.
+         *
+         * @return false if there is nothing to show, permissions are requested right away
+         */
+        boolean onRationale(int requestCode, @NonNull List<String> permissions);
+
+        /**
+         * Result of a runtime caller without {@link Listener}
+         */
+        void onRuntimeResult(int requestCode, @NonNull PermissionResult result);
+
+        /**
+         * Result of a special caller without {@link Listener}
+         */
+        void onSpecialResult(int requestCode, int type, boolean isGranted);
+
+        /**
+         * System dialog was answered, {@code result} has all permissions it asked
+         */
+        default void onAnswered(@NonNull PermissionResult result) {
+        }
+    }
+
+    /**
+     * Receive timings of request phases and outcome of each requested permission
+     */
+    public interface MetricsListener {
+        void onPhase(int requestCode, int type, @PermissionMetrics.Phase int phase, long durationNanos);
+
+        void onOutcome(@NonNull String permission, @PermissionResult.State int state);
+    }
+
+    @NonNull
+    private final PermissionIndex mIndex;
+    @NonNull
+    private final PermissionChecker mChecker;
+    @NonNull
+    private final PermissionRequester mRequester;
+    @NonNull
+    private final Callback mCallback;
+    private boolean mExplain;
+    @Nullable
+    private MetricsListener mMetrics;
+
+    // State
+    /**
+     * Flow is waiting for rationale, system dialog or setting screen
+     */
+    @Nullable
+    private PermissionRequest mCurrent;
+    /**
+     * Flows requested while {@code mCurrent} is running
+     */
+    @NonNull
+    private final ArrayDeque<PermissionRequest> mPending = new ArrayDeque<>();
+    /**
+     * Finished request kept to be reused, results never refer to it
+     */
+    @Nullable
+    private PermissionRequest mSpare;
+    @Nullable
+    private PrewarmState mPrewarm;
+
+    public PermissionFlow(@NonNull PermissionIndex index, @NonNull PermissionChecker checker,
+                          @NonNull PermissionRequester requester, @NonNull Callback callback) {
+        mIndex = index;
+        mChecker = checker;
+        mRequester = requester;
+        mCallback = callback;
+    }
+
+    //region Getter, setter
+
+    public boolean isExplain() {
+        return mExplain;
+    }
+
+    /**
+     * Explain every permission before requesting it, not only those which need rationale
+     */
+    public void setExplain(boolean explain) {
+        mExplain = explain;
+    }
+
+    @Nullable
+    public MetricsListener getMetrics() {
+        return mMetrics;
+    }
+
+    public void setMetrics(@Nullable MetricsListener metrics) {
+        mMetrics = metrics;
+    }
+
+    @NonNull
+    public PermissionIndex getIndex() {
+        return mIndex;
+    }
+
+    //endregion
+
+    /**
+     * @return true if nothing is running or waiting
+     */
+    public boolean isIdle() {
+        return mCurrent == null && mPending.isEmpty();
+    }
+
+    /**
+     * @return true if a request of {@code type} with same request code and same {@code permissions}
+     * is running, including waiting for its rationale, or is waiting to run
+     */
+    public boolean isRequested(int requestCode, int type, @NonNull PermissionBits permissions) {
+        if (mCurrent != null
+                && mCurrent.type == type
+                && mCurrent.hasCaller(requestCode, permissions)) {
+            return true;
+        }
+        for (PermissionRequest request : mPending) {
+            if (request.type == type && request.hasCaller(requestCode, permissions)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Request runtime {@code permissions}, ids of {@link #getIndex()}
+     *
+     * @param listener Receive result instead of {@link Callback#onRuntimeResult(int, PermissionResult)}
+     */
+    public void requestRuntime(int requestCode, @NonNull PermissionBits permissions, @Nullable Listener listener) {
+        if (mCurrent != null
+                && mCurrent.type == TYPE_RUNTIME
+                && mCurrent.permissions.equals(permissions)) {
+            // Same request is running, share its result
+            mCurrent.addCaller(requestCode, permissions, listener);
+            return;
+        }
+        PermissionRequest request = findPending(TYPE_RUNTIME);
+        if (request == null) {
+            request = obtainRequest(requestCode, TYPE_RUNTIME);
+            mPending.add(request);
+        }
+        request.addCaller(requestCode, permissions, listener);
+        next();
+    }
+
+    /**
+     * Request special permission {@code type}, {@code permission} is its id in {@link #getIndex()}
+     *
+     * @param listener Receive result instead of {@link Callback#onSpecialResult(int, int, boolean)}
+     */
+    public void requestSpecial(int requestCode, int type, int permission, @Nullable Listener listener) {
+        PermissionBits bits = new PermissionBits(mIndex.size());
+        bits.add(permission);
+        PermissionRequest request = mCurrent != null && mCurrent.type == type ? mCurrent : findPending(type);
+        if (request == null) {
+            request = obtainRequest(requestCode, type);
+            mPending.add(request);
+        }
+        request.addCaller(requestCode, bits, listener);
+        next();
+    }
+
+    /**
+     * Finish the running request now, permissions which were not answered are not resolved.
+     * Use it when its rationale will not be answered, later requests wait for it otherwise.
+     * Later answers of its rationale or system dialog only apply to a request which waits for them.
+     */
+    public void cancel() {
+        if (mCurrent != null) callback(mCurrent);
+    }
+
+    //region Prewarm
+
+    /**
+     * Add {@code permissions} to state computed by {@link #computePrewarm()}
+     */
+    public void prewarm(@NonNull PermissionBits permissions) {
+        if (mPrewarm == null) mPrewarm = new PrewarmState(mIndex.size());
+        mPrewarm.add(permissions);
+    }
+
+    /**
+     * Check prewarmed permissions now, a request of them skips the checks until {@link #invalidatePrewarm()}
+     */
+    public void computePrewarm() {
+        if (mPrewarm != null) mPrewarm.compute(mIndex, mChecker);
+    }
+
+    public void invalidatePrewarm() {
+        if (mPrewarm != null) mPrewarm.invalidate();
+    }
+
+    //endregion
+
+    @NonNull
+    private PermissionRequest obtainRequest(int requestCode, int type) {
+        PermissionRequest request = mSpare;
+        if (request == null) {
+            return new PermissionRequest(requestCode, type, mIndex.size());
+        }
+        mSpare = null;
+        request.set(requestCode, type);
+        return request;
+    }
+
+    @Nullable
+    private PermissionRequest findPending(int type) {
+        for (PermissionRequest request : mPending) {
+            if (request.type == type) return request;
+        }
+        return null;
+    }
+
+    /**
+     * Start next pending request if nothing is running
+     */
+    private void next() {
+        if (mCurrent != null) return;
+        mCurrent = mPending.poll();
+        if (mCurrent == null) return;
+        startPhase(mCurrent);
+        if (mCurrent.type == TYPE_RUNTIME) {
+            filterRuntime();
+        } else {
+            filterSpecial();
+        }
+    }
+
+    /**
+     * Classify permissions are granted before.
+     * If permission was granted, put them in {@code granted} set.
+     * If they not, put them in {@code request} set to request later.
+     * Prewarmed state is used if it has all permissions, otherwise they are checked by {@link PermissionClassifier}.
+     */
+    private void filterRuntime() {
+        PermissionRequest request = Objects.requireNonNull(mCurrent);
+        if (!mRequester.isAvailable()) {
+            release();
+            return;
+        }
+
+        if (mPrewarm != null && mPrewarm.covers(request.permissions)) {
+            for (int id = request.permissions.nextSetBit(0); id >= 0; id = request.permissions.nextSetBit(id + 1)) {
+                if (mPrewarm.granted.contains(id)) {
+                    request.granted.add(id);
+                } else {
+                    request.request.add(id);
+                    if (mExplain || mPrewarm.rationale.contains(id)) {
+                        request.rationale.add(id);
+                    }
+                }
+            }
+        } else {
+            PermissionClassifier.classify(request.permissions, mIndex, mChecker, mExplain,
+                    request.granted, request.request, request.rationale);
+        }
+        skipDeniedForever(request);
+        endPhase(request, PermissionMetrics.PHASE_FILTER);
+        checkList(request);
+    }
+
+    /**
+     * Permissions known to be denied forever are not asked again, system would deny them without a dialog
+     */
+    private void skipDeniedForever(@NonNull PermissionRequest request) {
+        PermissionBits pending = request.request;
+        for (int id = pending.nextSetBit(0); id >= 0; id = pending.nextSetBit(id + 1)) {
+            if (mChecker.isDeniedForever(mIndex.get(id))) {
+                pending.remove(id);
+                request.rationale.remove(id);
+                request.deniedForever.add(id);
+            }
+        }
+    }
+
+    private void checkList(@NonNull PermissionRequest request) {
+        if (request.request.isEmpty()) {
+            // All permissions was granted
+            callback(request);
+        } else if (request.rationale.isEmpty() || !showRationale(request,
+                Collections.unmodifiableList(Arrays.asList(request.rationale.toArray(mIndex))))) {
+            // Request, otherwise wait for rationale
+            startRequest(request);
+        }
+    }
+
+    private void filterSpecial() {
+        PermissionRequest request = Objects.requireNonNull(mCurrent);
+        boolean isGranted = mChecker.isSpecialGranted(request.type);
+        endPhase(request, PermissionMetrics.PHASE_FILTER);
+        if (isGranted) {
+            callback(request);
+        } else if (!mExplain || !showRationale(request,
+                Collections.singletonList(mIndex.get(request.permissions.nextSetBit(0))))) {
+            // Need Request, otherwise wait for rationale
+            startRequest(request);
+        }
+    }
+
+    /**
+     * @return true if rationale is shown and flow waits for {@link #continues(int, boolean)}
+     */
+    private boolean showRationale(@NonNull PermissionRequest request, @NonNull List<String> permissions) {
+        request.waitingRationale = true;
+        if (mCallback.onRationale(request.requestCode, permissions)) return true;
+        request.waitingRationale = false;
+        return false;
+    }
+
+    private void startRequest(@NonNull PermissionRequest request) {
+        if (!mRequester.isAvailable()) {
+            release();
+            return;
+        }
+        boolean started = request.type == TYPE_RUNTIME ?
+                mRequester.requestRuntime(request.requestCode, request.request.toArray(mIndex)) :
+                mRequester.requestSpecial(request.requestCode, request.type);
+        if (!started) {
+            // Could not ask now, finish with what we know so pending requests are not blocked
+            callback(request);
+        }
+    }
+
+    /**
+     * Host is gone, drop all requests
+     */
+    public void release() {
+        mCurrent = null;
+        mPending.clear();
+    }
+
+    /**
+     * Answer of system dialog of the running request
+     */
+    public void onRuntimeResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        PermissionRequest request = mCurrent;
+        if (request == null
+                || request.type != TYPE_RUNTIME
+                || requestCode != request.requestCode) {
+            return;
+        }
+
+        // Request result
+        if (!mRequester.isAvailable()) {
+            release();
+            return;
+        }
+
+        PermissionClassifier.classifyResult(permissions, grantResults, mIndex, request.request, mChecker,
+                request.granted, request.denied, request.deniedForever);
+        endPhase(request, PermissionMetrics.PHASE_SYSTEM);
+        mCallback.onAnswered(PermissionResult.of(request.requestCode, TYPE_RUNTIME, mIndex, request.request,
+                request.granted, request.denied, request.deniedForever));
+        callback(request);
+    }
+
+    /**
+     * User came back from setting screen of special permission {@code type}
+     */
+    public void onSpecialResult(int type) {
+        PermissionRequest request = mCurrent;
+        if (request == null || type != request.type) return;
+        endPhase(request, PermissionMetrics.PHASE_SYSTEM);
+        callback(request);
+    }
+
+    /**
+     * Continues request when rationale is answered
+     */
+    public void continues(int requestCode, boolean continues) {
+        PermissionRequest request = mCurrent;
+        if (request != null
+                && request.waitingRationale
+                && requestCode == request.requestCode) {
+            request.waitingRationale = false;
+            endPhase(request, PermissionMetrics.PHASE_RATIONALE);
+            if (continues) {
+                startRequest(request);
+            } else {
+                callback(request);
+            }
+        }
+    }
+
+    /**
+     * Deliver result to every caller of {@code request}, then start next pending request
+     */
+    private void callback(@NonNull PermissionRequest request) {
+        // Clear state first, callers may request again from their callback
+        if (mCurrent == request) mCurrent = null;
+        finish(request);
+        next();
+    }
+
+    /**
+     * Deliver result to every caller of {@code request} and recycle it
+     */
+    private void finish(@NonNull PermissionRequest request) {
+        request.waitingRationale = false;
+        startPhase(request);
+        boolean isGranted = false;
+        if (request.type == TYPE_RUNTIME) {
+            for (PermissionRequest.Caller caller : request.getCallers()) {
+                callbackRuntime(caller, request);
+            }
+        } else {
+            isGranted = mChecker.isSpecialGranted(request.type);
+            for (PermissionRequest.Caller caller : request.getCallers()) {
+                callbackSpecial(caller, request.type, isGranted);
+            }
+        }
+        if (mMetrics != null) {
+            endPhase(request, PermissionMetrics.PHASE_CALLBACK);
+            reportOutcomes(request, isGranted);
+        }
+        request.clear();
+        mSpare = request;
+    }
+
+    private void callbackRuntime(@NonNull PermissionRequest.Caller caller, @NonNull PermissionRequest request) {
+        // Snapshot only has caller's own permissions, it is safe to keep after request is recycled
+        PermissionResult result = PermissionResult.of(caller.requestCode, TYPE_RUNTIME, mIndex,
+                caller.permissions, request.granted, request.denied, request.deniedForever);
+        if (caller.listener != null) {
+            caller.listener.onResult(result);
+        } else {
+            mCallback.onRuntimeResult(caller.requestCode, result);
+        }
+    }
+
+    private void callbackSpecial(@NonNull PermissionRequest.Caller caller, int type, boolean isGranted) {
+        if (caller.listener != null) {
+            String p = mIndex.get(caller.permissions.nextSetBit(0));
+            caller.listener.onResult(PermissionResult.special(caller.requestCode, type, p, isGranted));
+        } else {
+            mCallback.onSpecialResult(caller.requestCode, type, isGranted);
+        }
+    }
+
+    /**
+     * Start timing next phase of {@code request}
+     */
+    private void startPhase(@NonNull PermissionRequest request) {
+        if (mMetrics != null) request.phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Report time since last mark of {@code request} as {@code phase}, next phase starts now
+     */
+    private void endPhase(@NonNull PermissionRequest request, @PermissionMetrics.Phase int phase) {
+        if (mMetrics == null) return;
+        long now = System.nanoTime();
+        mMetrics.onPhase(request.requestCode, request.type, phase, now - request.phaseStart);
+        request.phaseStart = now;
+    }
+
+    private void reportOutcomes(@NonNull PermissionRequest request, boolean isSpecialGranted) {
+        MetricsListener metrics = Objects.requireNonNull(mMetrics);
+        if (request.type != TYPE_RUNTIME) {
+            int id = request.permissions.nextSetBit(0);
+            if (id >= 0) {
+                metrics.onOutcome(mIndex.get(id), isSpecialGranted ?
+                        PermissionResult.STATE_GRANTED : PermissionResult.STATE_DENIED);
+            }
+            return;
+        }
+        int state;
+        for (int id = request.permissions.nextSetBit(0); id >= 0; id = request.permissions.nextSetBit(id + 1)) {
+            if (request.granted.contains(id)) state = PermissionResult.STATE_GRANTED;
+            else if (request.denied.contains(id)) state = PermissionResult.STATE_DENIED;
+            else if (request.deniedForever.contains(id)) state = PermissionResult.STATE_DENIED_FOREVER;
+            else state = PermissionResult.STATE_NOT_RESOLVED;
+            metrics.onOutcome(mIndex.get(id), state);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+
+/**
+ * Bounded LRU cache of permission to group name and of group name to label.
+ * Missing values are cached too, so a permission without group is only resolved once.
+ */
+public final class PermissionGroupCache {
+    private static final int DEFAULT_GROUP_SIZE = 64;
+    private static final int DEFAULT_LABEL_SIZE = 32;
+    /**
+     * Marks a permission has no group or a group has no label
+     */
+    private static final String NONE = "";
+
+    interface Resolver {
+        /**
+         * @return group of permission, or null if permission has no group or was not found
+         */
+        @Nullable
+        String getGroup(@NonNull String permission);
+
+        /**
+         * @return label of group, or null if group was not found
+         */
+        @Nullable
+        CharSequence loadLabel(@NonNull String group);
+    }
+
+    @NonNull
+    private final Resolver mResolver;
+    @NonNull
+    private final LruCache<String, String> mGroups;
+    @NonNull
+    private final LruCache<String, CharSequence> mLabels;
+
+    PermissionGroupCache(@NonNull Resolver resolver) {
+        this(resolver, DEFAULT_GROUP_SIZE, DEFAULT_LABEL_SIZE);
+    }
+
+    PermissionGroupCache(@NonNull Resolver resolver, int groupSize, int labelSize) {
+        mResolver = resolver;
+        mGroups = new LruCache<>(groupSize);
+        mLabels = new LruCache<>(labelSize);
+    }
+
+    @Nullable
+    public CharSequence getGroupName(@NonNull final String permission) {
+        String group = mGroups.get(permission);
+        if (group == null) {
+            group = mResolver.getGroup(permission);
+            if (group == null) group = NONE;
+            mGroups.put(permission, group);
+        }
+        if (NONE.equals(group)) return null;
+
+        CharSequence label = mLabels.get(group);
+        if (label == null) {
+            label = mResolver.loadLabel(group);
+            if (label == null) label = NONE;
+            mLabels.put(group, label);
+        }
+        return NONE.equals(label) ? null : label;
+    }
+
+    /**
+     * Labels depend on locale, call this when configuration was changed
+     */
+    public void invalidateLabels() {
+        mLabels.evictAll();
+    }
+
+    public void invalidate() {
+        mGroups.evictAll();
+        mLabels.evictAll();
+    }
+}
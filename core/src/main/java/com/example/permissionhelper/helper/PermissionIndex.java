@@ -0,0 +1,123 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable index of the permissions declared in manifest.
+ * Each permission is mapped to a small id (its position in declared order) by an open addressing hash table,
+ * so a lookup is a hash probe instead of a scan over the declared list.
+ */
+public final class PermissionIndex {
+    private static final int NOT_FOUND = -1;
+
+    @NonNull
+    private final String[] mPermissions;
+    /**
+     * Hash slots, each one contains {@code id + 1} or 0 when empty
+     */
+    @NonNull
+    private final int[] mSlots;
+    private final int mMask;
+
+    public PermissionIndex(@NonNull final List<String> permissions) {
+        List<String> unique = new ArrayList<>(permissions.size());
+        int capacity = tableSize(permissions.size());
+        int[] slots = new int[capacity];
+        int mask = capacity - 1;
+        for (String p : permissions) {
+            if (p == null) continue;
+            int slot = mix(p.hashCode()) & mask;
+            boolean duplicate = false;
+            while (slots[slot] != 0) {
+                if (unique.get(slots[slot] - 1).equals(p)) {
+                    duplicate = true;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (!duplicate) {
+                unique.add(p);
+                slots[slot] = unique.size();
+            }
+        }
+        mPermissions = unique.toArray(new String[0]);
+        mSlots = slots;
+        mMask = mask;
+    }
+
+    /**
+     * Keep load factor below 0.5 so probe sequences stay short
+     */
+    private static int tableSize(int count) {
+        int size = 2;
+        while (size < count * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    public int size() {
+        return mPermissions.length;
+    }
+
+    /**
+     * @return id of permission, or -1 if it was not declared
+     */
+    public int indexOf(@Nullable final String permission) {
+        if (permission == null) return NOT_FOUND;
+        int slot = mix(permission.hashCode()) & mMask;
+        int id;
+        while ((id = mSlots[slot]) != 0) {
+            if (mPermissions[id - 1].equals(permission)) {
+                return id - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NOT_FOUND;
+    }
+
+    public boolean contains(@Nullable final String permission) {
+        return indexOf(permission) != NOT_FOUND;
+    }
+
+    /**
+     * @return true if all permissions were declared. An empty list is never declared.
+     */
+    public boolean containsAll(@NonNull final List<String> permissions) {
+        if (permissions.isEmpty()) return false;
+        for (int i = 0, size = permissions.size(); i < size; i++) {
+            if (indexOf(permissions.get(i)) == NOT_FOUND) return false;
+        }
+        return true;
+    }
+
+    @NonNull
+    public String get(int id) {
+        return mPermissions[id];
+    }
+
+    /**
+     * @return permissions which were not declared in manifest, list is only allocated when something is missing
+     */
+    @NonNull
+    public List<String> findUndeclared(@NonNull final List<String> permissions) {
+        List<String> undeclared = null;
+        for (int i = 0, size = permissions.size(); i < size; i++) {
+            String p = permissions.get(i);
+            if (indexOf(p) == NOT_FOUND) {
+                if (undeclared == null) undeclared = new ArrayList<>();
+                undeclared.add(p);
+            }
+        }
+        return undeclared == null ? Collections.emptyList() : undeclared;
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Record time spent in each phase of permission flows in {@link LatencyHistogram}s,
+ * and how many times each permission ended in each {@link PermissionResult.State}.
+ * Give it to {@link PermissionFlow#setMetrics(PermissionFlow.MetricsListener)},
+ * or implement {@link PermissionFlow.MetricsListener} to export elsewhere.
+ * Binder calls of the Android adapter are counted by kind of {@link Call}.
+ */
+@MainThread
+public final class PermissionMetrics implements PermissionFlow.MetricsListener {
+
+    @IntDef({PHASE_VALIDATION, PHASE_FILTER, PHASE_RATIONALE, PHASE_SYSTEM, PHASE_CALLBACK})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Phase {
+    }
+
+    @IntDef({CALL_CHECK_SELF_PERMISSION, CALL_SHOULD_SHOW_RATIONALE, CALL_GET_PERMISSION_INFO})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Call {
+    }
+
+    /**
+     * Check permissions are declared in manifest
+     */
+    public static final int PHASE_VALIDATION = 0;
+    /**
+     * Check grant and rationale state before requesting
+     */
+    public static final int PHASE_FILTER = 1;
+    /**
+     * Wait for rationale to be answered
+     */
+    public static final int PHASE_RATIONALE = 2;
+    /**
+     * Wait for system dialog or setting screen
+     */
+    public static final int PHASE_SYSTEM = 3;
+    /**
+     * Deliver result to callers
+     */
+    public static final int PHASE_CALLBACK = 4;
+    public static final int PHASE_COUNT = 5;
+
+    public static final int CALL_CHECK_SELF_PERMISSION = 0;
+    public static final int CALL_SHOULD_SHOW_RATIONALE = 1;
+    public static final int CALL_GET_PERMISSION_INFO = 2;
+    public static final int CALL_COUNT = 3;
+
+    private static final int STATE_COUNT = 4;
+
+    private final LatencyHistogram[] mPhases = new LatencyHistogram[PHASE_COUNT];
+    /**
+     * Outcome counts indexed by permission id * STATE_COUNT + state
+     */
+    @NonNull
+    private final long[] mOutcomes;
+    @NonNull
+    private final PermissionIndex mIndex;
+
+    public PermissionMetrics(@NonNull PermissionIndex index) {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mPhases[i] = new LatencyHistogram();
+        }
+        mIndex = index;
+        mOutcomes = new long[mIndex.size() * STATE_COUNT];
+    }
+
+    @Override
+    public void onPhase(int requestCode, int type, int phase, long durationNanos) {
+        mPhases[phase].record(durationNanos);
+    }
+
+    @Override
+    public void onOutcome(@NonNull String permission, int state) {
+        int id = mIndex.indexOf(permission);
+        if (id >= 0) mOutcomes[id * STATE_COUNT + state]++;
+    }
+
+    @NonNull
+    public LatencyHistogram getHistogram(@Phase int phase) {
+        return mPhases[phase];
+    }
+
+    public long getOutcomeCount(@NonNull String permission, @PermissionResult.State int state) {
+        int id = mIndex.indexOf(permission);
+        return id < 0 ? 0 : mOutcomes[id * STATE_COUNT + state];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mPhases) {
+            histogram.reset();
+        }
+        for (int i = 0; i < mOutcomes.length; i++) {
+            mOutcomes[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * State of one permission flow: at most one rationale and one system dialog or setting screen.
+ * Several callers may share one flow, each of them gets result of its own permissions with its own request code.
+ * All sets are indexed by id in {@link PermissionIndex} of the flow.
+ */
+final class PermissionRequest {
+    /**
+     * Request code of the first caller, it is used for rationale and system dialog
+     */
+    int requestCode;
+    int type;
+    /**
+     * Union of permissions of all callers
+     */
+    final PermissionBits permissions;
+    /**
+     * Contain permissions that was not grant
+     */
+    final PermissionBits request;
+    /**
+     * Contain permissions was granted
+     */
+    final PermissionBits granted;
+    final PermissionBits rationale;
+    /**
+     * Contain permission was denied
+     */
+    final PermissionBits denied;
+    /**
+     * Contain permission was deny forever
+     */
+    final PermissionBits deniedForever;
+    boolean waitingRationale;
+    /**
+     * {@link System#nanoTime()} when current phase started, only set when metrics are enabled
+     */
+    long phaseStart;
+
+    @NonNull
+    private final List<Caller> mCallers = new ArrayList<>(1);
+
+    PermissionRequest(int requestCode, int type, int capacity) {
+        this.requestCode = requestCode;
+        this.type = type;
+        permissions = new PermissionBits(capacity);
+        request = new PermissionBits(capacity);
+        granted = new PermissionBits(capacity);
+        rationale = new PermissionBits(capacity);
+        denied = new PermissionBits(capacity);
+        deniedForever = new PermissionBits(capacity);
+    }
+
+    /**
+     * Add a caller, its permissions are added to this flow.
+     * A caller with same request code, same permissions and same listener is only added once.
+     */
+    void addCaller(int requestCode, @NonNull PermissionBits permissions, @Nullable PermissionFlow.Listener listener) {
+        for (Caller caller : mCallers) {
+            if (caller.requestCode == requestCode
+                    && caller.listener == listener
+                    && caller.permissions.equals(permissions)) return;
+        }
+        mCallers.add(new Caller(requestCode, permissions, listener));
+        this.permissions.addAll(permissions);
+    }
+
+    /**
+     * @return true if a caller with {@code requestCode} and same {@code permissions} was added
+     */
+    boolean hasCaller(int requestCode, @NonNull PermissionBits permissions) {
+        for (Caller caller : mCallers) {
+            if (caller.requestCode == requestCode && caller.permissions.equals(permissions)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reuse this instance for a new flow
+     */
+    void set(int requestCode, int type) {
+        this.requestCode = requestCode;
+        this.type = type;
+    }
+
+    /**
+     * Drop all state, so this instance can be reused
+     */
+    void clear() {
+        permissions.clear();
+        request.clear();
+        granted.clear();
+        rationale.clear();
+        denied.clear();
+        deniedForever.clear();
+        waitingRationale = false;
+        mCallers.clear();
+    }
+
+    @NonNull
+    List<Caller> getCallers() {
+        return Collections.unmodifiableList(mCallers);
+    }
+
+    static final class Caller {
+        final int requestCode;
+        final PermissionBits permissions;
+        /**
+         * Receive result instead of helper callback if it is not null
+         */
+        @Nullable
+        final PermissionFlow.Listener listener;
+
+        Caller(int requestCode, @NonNull PermissionBits permissions, @Nullable PermissionFlow.Listener listener) {
+            this.requestCode = requestCode;
+            this.permissions = permissions;
+            this.listener = listener;
+        }
+    }
+}
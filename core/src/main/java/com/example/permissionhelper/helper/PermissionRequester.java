@@ -0,0 +1,29 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Ask user for permissions, implemented by platform adapter.
+ * Answer is given back to {@link PermissionFlow#onRuntimeResult(int, String[], int[])}
+ * or {@link PermissionFlow#onSpecialResult(int)}.
+ */
+public interface PermissionRequester {
+    /**
+     * @return false if screen which asks user is gone, flow drops all its requests
+     */
+    boolean isAvailable();
+
+    /**
+     * Show system dialog of {@code permissions}
+     *
+     * @return false if it could not be shown now
+     */
+    boolean requestRuntime(int requestCode, @NonNull String[] permissions);
+
+    /**
+     * Open setting screen of special permission {@code type}
+     *
+     * @return false if it could not be opened now
+     */
+    boolean requestSpecial(int requestCode, int type);
+}
@@ -0,0 +1,161 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable result of one request, it can be kept and read from any thread.
+ * All permissions are stored in one array ordered by state: granted, denied, denied forever, not resolved.
+ * Lists returned by getters are read only views of a range of that array, nothing is copied.
+ */
+public final class PermissionResult {
+
+    @IntDef({STATE_NOT_RESOLVED, STATE_GRANTED, STATE_DENIED, STATE_DENIED_FOREVER})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface State {
+    }
+
+    /**
+     * Permission was not requested, or request was stopped before it was answered
+     */
+    public static final int STATE_NOT_RESOLVED = 0;
+    public static final int STATE_GRANTED = 1;
+    public static final int STATE_DENIED = 2;
+    public static final int STATE_DENIED_FOREVER = 3;
+
+    private final int mRequestCode;
+    private final int mType;
+    @NonNull
+    private final String[] mPermissions;
+    private final int mDeniedStart;
+    private final int mDeniedForeverStart;
+    private final int mNotResolvedStart;
+
+    private PermissionResult(int requestCode, int type, @NonNull String[] permissions,
+                             int deniedStart, int deniedForeverStart, int notResolvedStart) {
+        mRequestCode = requestCode;
+        mType = type;
+        mPermissions = permissions;
+        mDeniedStart = deniedStart;
+        mDeniedForeverStart = deniedForeverStart;
+        mNotResolvedStart = notResolvedStart;
+    }
+
+    /**
+     * Take result of {@code request} permissions from state sets of a request
+     */
+    @NonNull
+    static PermissionResult of(int requestCode, int type, @NonNull PermissionIndex index,
+                               @NonNull PermissionBits request, @NonNull PermissionBits granted,
+                               @NonNull PermissionBits denied, @NonNull PermissionBits deniedForever) {
+        // Count each state, then put every permission at the next slot of its state
+        int grantedCount = 0, deniedCount = 0, deniedForeverCount = 0, size = 0;
+        for (int id = request.nextSetBit(0); id >= 0; id = request.nextSetBit(id + 1)) {
+            size++;
+            if (granted.contains(id)) grantedCount++;
+            else if (denied.contains(id)) deniedCount++;
+            else if (deniedForever.contains(id)) deniedForeverCount++;
+        }
+        int deniedStart = grantedCount;
+        int deniedForeverStart = deniedStart + deniedCount;
+        int notResolvedStart = deniedForeverStart + deniedForeverCount;
+
+        String[] permissions = new String[size];
+        int g = 0, d = deniedStart, f = deniedForeverStart, n = notResolvedStart;
+        for (int id = request.nextSetBit(0); id >= 0; id = request.nextSetBit(id + 1)) {
+            if (granted.contains(id)) permissions[g++] = index.get(id);
+            else if (denied.contains(id)) permissions[d++] = index.get(id);
+            else if (deniedForever.contains(id)) permissions[f++] = index.get(id);
+            else permissions[n++] = index.get(id);
+        }
+        return new PermissionResult(requestCode, type, permissions, deniedStart, deniedForeverStart, notResolvedStart);
+    }
+
+    @NonNull
+    static PermissionResult special(int requestCode, int type, @NonNull String permission,
+                                    boolean isGranted) {
+        int deniedStart = isGranted ? 1 : 0;
+        return new PermissionResult(requestCode, type, new String[]{permission}, deniedStart, 1, 1);
+    }
+
+    public int getRequestCode() {
+        return mRequestCode;
+    }
+
+    /**
+     * @return {@link PermissionFlow#TYPE_RUNTIME} or type of special permission
+     */
+    public int getType() {
+        return mType;
+    }
+
+    @NonNull
+    public List<String> getRequest() {
+        return new Range(mPermissions, 0, mPermissions.length);
+    }
+
+    @NonNull
+    public List<String> getGranted() {
+        return new Range(mPermissions, 0, mDeniedStart);
+    }
+
+    @NonNull
+    public List<String> getDenied() {
+        return new Range(mPermissions, mDeniedStart, mDeniedForeverStart);
+    }
+
+    @NonNull
+    public List<String> getDeniedForever() {
+        return new Range(mPermissions, mDeniedForeverStart, mNotResolvedStart);
+    }
+
+    public boolean isAllGranted() {
+        return mDeniedStart == mPermissions.length;
+    }
+
+    public boolean isGranted(@NonNull final String permission) {
+        return getState(permission) == STATE_GRANTED;
+    }
+
+    public @State
+    int getState(@NonNull final String permission) {
+        for (int i = 0; i < mPermissions.length; i++) {
+            if (mPermissions[i].equals(permission)) {
+                if (i < mDeniedStart) return STATE_GRANTED;
+                if (i < mDeniedForeverStart) return STATE_DENIED;
+                if (i < mNotResolvedStart) return STATE_DENIED_FOREVER;
+                return STATE_NOT_RESOLVED;
+            }
+        }
+        return STATE_NOT_RESOLVED;
+    }
+
+    private static final class Range extends AbstractList<String> implements RandomAccess {
+        private final String[] mArray;
+        private final int mFrom;
+        private final int mSize;
+
+        Range(@NonNull String[] array, int from, int to) {
+            mArray = array;
+            mFrom = from;
+            mSize = to - from;
+        }
+
+        @Override
+        public String get(int position) {
+            if (position < 0 || position >= mSize) throw new IndexOutOfBoundsException("Index: " + position);
+            return mArray[mFrom + position];
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Grant and rationale state of permissions computed before they are requested,
+ * so a request can go straight to rationale or system dialog.
+ * On Android state is only valid while activity is resumed, user can not change permissions without pausing it.
+ */
+final class PrewarmState {
+    /**
+     * Permissions to compute
+     */
+    final PermissionBits permissions;
+    final PermissionBits granted;
+    final PermissionBits rationale;
+    private final PermissionBits mNotGranted;
+    private boolean mValid;
+
+    PrewarmState(int capacity) {
+        permissions = new PermissionBits(capacity);
+        granted = new PermissionBits(capacity);
+        rationale = new PermissionBits(capacity);
+        mNotGranted = new PermissionBits(capacity);
+    }
+
+    void add(@NonNull PermissionBits bits) {
+        if (!permissions.containsAll(bits)) {
+            permissions.addAll(bits);
+            mValid = false;
+        }
+    }
+
+    void compute(@NonNull PermissionIndex index, @NonNull PermissionChecker checker) {
+        granted.clear();
+        rationale.clear();
+        mNotGranted.clear();
+        PermissionClassifier.classify(permissions, index, checker, false, granted, mNotGranted, rationale);
+        mValid = true;
+    }
+
+    void invalidate() {
+        mValid = false;
+    }
+
+    /**
+     * @return true if state of all {@code request} permissions is known
+     */
+    boolean covers(@NonNull PermissionBits request) {
+        return mValid && permissions.containsAll(request);
+    }
+}
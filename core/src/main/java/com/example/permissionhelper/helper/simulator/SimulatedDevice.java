@@ -0,0 +1,322 @@
+package com.example.permissionhelper.helper.simulator;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.example.permissionhelper.helper.PermissionChecker;
+import com.example.permissionhelper.helper.PermissionFlow;
+import com.example.permissionhelper.helper.PermissionIndex;
+import com.example.permissionhelper.helper.PermissionRequester;
+import com.example.permissionhelper.helper.PermissionResult;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Deterministic device for running {@link PermissionFlow}s on the JVM.
+ * User answers are scripted per permission. Dialogs, setting screens and rationales are queued
+ * and answered in order by {@link #runPending()}, so many screens can have flows running at once.
+ * Like Android, a permission denied forever is denied again without showing a dialog.
+ * Screens know which permissions are denied forever, like an app which keeps a history of denials.
+ */
+public final class SimulatedDevice {
+
+    @IntDef({ANSWER_GRANT, ANSWER_DENY, ANSWER_DENY_FOREVER})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Answer {
+    }
+
+    public static final int ANSWER_GRANT = 0;
+    public static final int ANSWER_DENY = 1;
+    /**
+     * Deny and check "Don't ask again"
+     */
+    public static final int ANSWER_DENY_FOREVER = 2;
+
+    private static final int PERMISSION_GRANTED = 0;
+    private static final int PERMISSION_DENIED = -1;
+    private static final byte STATE_GRANTED = 1;
+    private static final byte STATE_RATIONALE = 1 << 1;
+    private static final byte STATE_NEVER_ASK = 1 << 2;
+    /**
+     * Special permission types are kept below this value
+     */
+    private static final int MAX_SPECIAL_TYPE = 64;
+
+    @NonNull
+    private final PermissionIndex mIndex;
+    /**
+     * State of each permission id
+     */
+    @NonNull
+    private final byte[] mStates;
+    @NonNull
+    private final byte[] mAnswers;
+    @NonNull
+    private final boolean[] mSpecialGranted = new boolean[MAX_SPECIAL_TYPE];
+    @NonNull
+    private final boolean[] mSpecialAnswers = new boolean[MAX_SPECIAL_TYPE];
+    private boolean mRationaleAnswer = true;
+    @NonNull
+    private final ArrayDeque<Prompt> mPrompts = new ArrayDeque<>();
+    private long mDialogCount;
+    private long mRationaleCount;
+
+    /**
+     * Every permission of {@code index} starts not granted and is denied when asked
+     */
+    public SimulatedDevice(@NonNull PermissionIndex index) {
+        mIndex = index;
+        mStates = new byte[index.size()];
+        mAnswers = new byte[index.size()];
+        Arrays.fill(mAnswers, (byte) ANSWER_DENY);
+    }
+
+    //region Script
+
+    public void setAnswer(@NonNull String permission, @Answer int answer) {
+        mAnswers[id(permission)] = (byte) answer;
+    }
+
+    public void setSpecialAnswer(int type, boolean grant) {
+        mSpecialAnswers[type] = grant;
+    }
+
+    /**
+     * @param continues answer of every rationale
+     */
+    public void setRationaleAnswer(boolean continues) {
+        mRationaleAnswer = continues;
+    }
+
+    public void grant(@NonNull String permission) {
+        mStates[id(permission)] = STATE_GRANTED;
+    }
+
+    /**
+     * Revoke like user does in setting, "Don't ask again" is also reset
+     */
+    public void revoke(@NonNull String permission) {
+        mStates[id(permission)] = 0;
+    }
+
+    //endregion
+
+    @NonNull
+    public PermissionIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * @return a new screen with its own flow
+     */
+    @NonNull
+    public Screen newScreen() {
+        return new Screen();
+    }
+
+    public boolean hasPending() {
+        return !mPrompts.isEmpty();
+    }
+
+    /**
+     * Answer every queued dialog, setting screen and rationale in order,
+     * including those queued while answering
+     *
+     * @return number of answered prompts
+     */
+    public int runPending() {
+        int count = 0;
+        Prompt prompt;
+        while ((prompt = mPrompts.poll()) != null) {
+            count++;
+            prompt.answer();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of system dialogs and setting screens shown
+     */
+    public long getDialogCount() {
+        return mDialogCount;
+    }
+
+    /**
+     * @return number of rationales shown
+     */
+    public long getRationaleCount() {
+        return mRationaleCount;
+    }
+
+    private int id(@NonNull String permission) {
+        int id = mIndex.indexOf(permission);
+        if (id < 0) throw new IllegalArgumentException("Unknown permission: " + permission);
+        return id;
+    }
+
+    private int answerRuntime(int id) {
+        byte state = mStates[id];
+        if ((state & STATE_GRANTED) != 0) return PERMISSION_GRANTED;
+        if ((state & STATE_NEVER_ASK) != 0) return PERMISSION_DENIED;
+        switch (mAnswers[id]) {
+            case ANSWER_GRANT:
+                mStates[id] = STATE_GRANTED;
+                return PERMISSION_GRANTED;
+            case ANSWER_DENY_FOREVER:
+                mStates[id] = STATE_NEVER_ASK;
+                return PERMISSION_DENIED;
+            default:
+                mStates[id] = STATE_RATIONALE;
+                return PERMISSION_DENIED;
+        }
+    }
+
+    /**
+     * Host of one {@link PermissionFlow}, like an activity
+     */
+    public final class Screen implements PermissionChecker, PermissionRequester, PermissionFlow.Callback {
+        @NonNull
+        private final PermissionFlow mFlow;
+        private boolean mAvailable = true;
+        private int mResultCount;
+        @Nullable
+        private PermissionResult mLastResult;
+
+        Screen() {
+            mFlow = new PermissionFlow(mIndex, this, this, this);
+        }
+
+        @NonNull
+        public PermissionFlow getFlow() {
+            return mFlow;
+        }
+
+        /**
+         * Screen is gone, its flow drops requests and queued prompts are ignored
+         */
+        public void close() {
+            mAvailable = false;
+        }
+
+        /**
+         * @return number of results given to {@link PermissionFlow.Callback}
+         */
+        public int getResultCount() {
+            return mResultCount;
+        }
+
+        /**
+         * @return last runtime result given to {@link PermissionFlow.Callback}
+         */
+        @Nullable
+        public PermissionResult getLastResult() {
+            return mLastResult;
+        }
+
+        @Override
+        public boolean isGranted(@NonNull String permission) {
+            return (mStates[id(permission)] & STATE_GRANTED) != 0;
+        }
+
+        @Override
+        public boolean shouldShowRationale(@NonNull String permission) {
+            return (mStates[id(permission)] & STATE_RATIONALE) != 0;
+        }
+
+        @Override
+        public boolean isDeniedForever(@NonNull String permission) {
+            return (mStates[id(permission)] & STATE_NEVER_ASK) != 0;
+        }
+
+        @Override
+        public boolean isSpecialGranted(int type) {
+            return mSpecialGranted[type];
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return mAvailable;
+        }
+
+        @Override
+        public boolean requestRuntime(int requestCode, @NonNull String[] permissions) {
+            mPrompts.add(new Prompt(this, Prompt.RUNTIME, requestCode, permissions));
+            return true;
+        }
+
+        @Override
+        public boolean requestSpecial(int requestCode, int type) {
+            mPrompts.add(new Prompt(this, Prompt.SPECIAL, type, null));
+            return true;
+        }
+
+        @Override
+        public boolean onRationale(int requestCode, @NonNull List<String> permissions) {
+            mRationaleCount++;
+            mPrompts.add(new Prompt(this, Prompt.RATIONALE, requestCode, null));
+            return true;
+        }
+
+        @Override
+        public void onRuntimeResult(int requestCode, @NonNull PermissionResult result) {
+            mResultCount++;
+            mLastResult = result;
+        }
+
+        @Override
+        public void onSpecialResult(int requestCode, int type, boolean isGranted) {
+            mResultCount++;
+        }
+    }
+
+    private final class Prompt {
+        static final int RUNTIME = 0;
+        static final int SPECIAL = 1;
+        static final int RATIONALE = 2;
+
+        @NonNull
+        final Screen screen;
+        final int kind;
+        /**
+         * Request code, or type of special permission
+         */
+        final int code;
+        @Nullable
+        final String[] permissions;
+
+        Prompt(@NonNull Screen screen, int kind, int code, @Nullable String[] permissions) {
+            this.screen = screen;
+            this.kind = kind;
+            this.code = code;
+            this.permissions = permissions;
+        }
+
+        void answer() {
+            if (!screen.mAvailable) return;
+            switch (kind) {
+                case RUNTIME:
+                    mDialogCount++;
+                    String[] names = permissions != null ? permissions : new String[0];
+                    int[] grantResults = new int[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        grantResults[i] = answerRuntime(id(names[i]));
+                    }
+                    screen.mFlow.onRuntimeResult(code, names, grantResults);
+                    break;
+                case SPECIAL:
+                    mDialogCount++;
+                    mSpecialGranted[code] = mSpecialAnswers[code];
+                    screen.mFlow.onSpecialResult(code);
+                    break;
+                default:
+                    screen.mFlow.continues(code, mRationaleAnswer);
+                    break;
+            }
+        }
+    }
+}
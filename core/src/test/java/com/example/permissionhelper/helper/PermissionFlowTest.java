@@ -0,0 +1,288 @@
+package com.example.permissionhelper.helper;
+
+import androidx.annotation.NonNull;
+
+import com.example.permissionhelper.helper.simulator.SimulatedDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Request state machine on {@link SimulatedDevice}
+ */
+public class PermissionFlowTest {
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String RECORD_AUDIO = "android.permission.RECORD_AUDIO";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String WRITE_SETTINGS = "android.permission.WRITE_SETTINGS";
+    private static final String SYSTEM_ALERT_WINDOW = "android.permission.SYSTEM_ALERT_WINDOW";
+    private static final int TYPE_WRITE_SETTINGS = 0x02;
+    private static final int TYPE_DRAW_OVERLAYS = 0x03;
+
+    private SimulatedDevice mDevice;
+    private PermissionFlow mFlow;
+    private final List<PermissionResult> mResults = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mDevice = new SimulatedDevice(new PermissionIndex(Arrays.asList(CAMERA, RECORD_AUDIO, READ_CONTACTS,
+                WRITE_SETTINGS, SYSTEM_ALERT_WINDOW)));
+        mFlow = mDevice.newScreen().getFlow();
+        mResults.clear();
+    }
+
+    //region Coalescing
+
+    @Test
+    public void sameRequestSharesResult() {
+        mDevice.setAnswer(CAMERA, SimulatedDevice.ANSWER_GRANT);
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+        mFlow.requestRuntime(2, bits(CAMERA), mResults::add);
+        mDevice.runPending();
+
+        assertEquals(1, mDevice.getDialogCount());
+        assertEquals(2, mResults.size());
+        assertEquals(1, mResults.get(0).getRequestCode());
+        assertEquals(2, mResults.get(1).getRequestCode());
+        assertTrue(mResults.get(0).isAllGranted());
+        assertTrue(mResults.get(1).isAllGranted());
+    }
+
+    @Test
+    public void overlappingRequestsAreMergedIntoOneDialog() {
+        mDevice.setAnswer(CAMERA, SimulatedDevice.ANSWER_GRANT);
+        mDevice.setAnswer(RECORD_AUDIO, SimulatedDevice.ANSWER_GRANT);
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+        // Both wait for the running dialog, then they are asked together
+        mFlow.requestRuntime(2, bits(RECORD_AUDIO), mResults::add);
+        mFlow.requestRuntime(3, bits(READ_CONTACTS), mResults::add);
+        mDevice.runPending();
+
+        assertEquals(2, mDevice.getDialogCount());
+        assertEquals(3, mResults.size());
+        assertEquals(Collections.singletonList(CAMERA), mResults.get(0).getGranted());
+        assertEquals(Collections.singletonList(RECORD_AUDIO), mResults.get(1).getRequest());
+        assertTrue(mResults.get(1).isAllGranted());
+        assertEquals(Collections.singletonList(READ_CONTACTS), mResults.get(2).getDenied());
+        assertTrue(mFlow.isIdle());
+    }
+
+    @Test
+    public void runningRequestIsRequested() {
+        mFlow.requestRuntime(1, bits(CAMERA), null);
+
+        assertTrue(mFlow.isRequested(1, PermissionFlow.TYPE_RUNTIME, bits(CAMERA)));
+        assertFalse(mFlow.isRequested(2, PermissionFlow.TYPE_RUNTIME, bits(CAMERA)));
+        assertFalse(mFlow.isRequested(1, PermissionFlow.TYPE_RUNTIME, bits(CAMERA, RECORD_AUDIO)));
+        mDevice.runPending();
+        assertFalse(mFlow.isRequested(1, PermissionFlow.TYPE_RUNTIME, bits(CAMERA)));
+    }
+
+    //endregion
+
+    //region Rationale
+
+    @Test
+    public void rationaleContinuesToDialog() {
+        mDevice.setAnswer(CAMERA, SimulatedDevice.ANSWER_GRANT);
+        mFlow.setExplain(true);
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+        mDevice.runPending();
+
+        assertEquals(1, mDevice.getRationaleCount());
+        assertEquals(1, mDevice.getDialogCount());
+        assertTrue(mResults.get(0).isAllGranted());
+    }
+
+    @Test
+    public void declinedRationaleLeavesPermissionsNotResolved() {
+        mFlow.setExplain(true);
+        mDevice.setRationaleAnswer(false);
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+        mDevice.runPending();
+
+        assertEquals(0, mDevice.getDialogCount());
+        assertEquals(PermissionResult.STATE_NOT_RESOLVED, mResults.get(0).getState(CAMERA));
+    }
+
+    @Test
+    public void rationaleIsShownAfterDenial() {
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+        mDevice.runPending();
+        assertEquals(0, mDevice.getRationaleCount());
+
+        mDevice.setAnswer(CAMERA, SimulatedDevice.ANSWER_GRANT);
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+        mDevice.runPending();
+
+        assertEquals(1, mDevice.getRationaleCount());
+        assertEquals(2, mDevice.getDialogCount());
+        assertTrue(mResults.get(1).isAllGranted());
+    }
+
+    @Test
+    public void sameRequestJoinsRequestWaitingForRationale() {
+        mDevice.setAnswer(CAMERA, SimulatedDevice.ANSWER_GRANT);
+        mFlow.setExplain(true);
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+
+        assertTrue(mFlow.isRequested(1, PermissionFlow.TYPE_RUNTIME, bits(CAMERA)));
+        mFlow.requestRuntime(2, bits(CAMERA), mResults::add);
+        mDevice.runPending();
+
+        assertEquals(1, mDevice.getRationaleCount());
+        assertEquals(1, mDevice.getDialogCount());
+        assertEquals(2, mResults.size());
+        assertTrue(mResults.get(0).isAllGranted());
+        assertTrue(mResults.get(1).isAllGranted());
+    }
+
+    @Test
+    public void cancelFinishesRequestWaitingForRationale() {
+        mDevice.setAnswer(RECORD_AUDIO, SimulatedDevice.ANSWER_GRANT);
+        mFlow.setExplain(true);
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+        mFlow.requestRuntime(2, bits(RECORD_AUDIO), mResults::add);
+        mFlow.cancel();
+
+        assertEquals(1, mResults.size());
+        assertEquals(PermissionResult.STATE_NOT_RESOLVED, mResults.get(0).getState(CAMERA));
+        // Late answer of cancelled rationale does not apply to the next request
+        mDevice.runPending();
+        assertEquals(2, mDevice.getRationaleCount());
+        assertEquals(1, mDevice.getDialogCount());
+        assertTrue(mResults.get(1).isAllGranted());
+        assertTrue(mFlow.isIdle());
+    }
+
+    //endregion
+
+    //region Denied forever
+
+    @Test
+    public void deniedForeverIsNotAskedAgain() {
+        mDevice.setAnswer(CAMERA, SimulatedDevice.ANSWER_DENY_FOREVER);
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+        mDevice.runPending();
+        assertEquals(Collections.singletonList(CAMERA), mResults.get(0).getDeniedForever());
+
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+
+        // Result is given right away without a dialog
+        assertFalse(mDevice.hasPending());
+        assertEquals(1, mDevice.getDialogCount());
+        assertEquals(Collections.singletonList(CAMERA), mResults.get(1).getDeniedForever());
+    }
+
+    @Test
+    public void deniedForeverIsSkippedInDialog() {
+        mDevice.setAnswer(CAMERA, SimulatedDevice.ANSWER_DENY_FOREVER);
+        mFlow.requestRuntime(1, bits(CAMERA), null);
+        mDevice.runPending();
+
+        mDevice.setAnswer(RECORD_AUDIO, SimulatedDevice.ANSWER_GRANT);
+        mFlow.requestRuntime(2, bits(CAMERA, RECORD_AUDIO), mResults::add);
+        mDevice.runPending();
+
+        assertEquals(2, mDevice.getDialogCount());
+        assertEquals(Collections.singletonList(RECORD_AUDIO), mResults.get(0).getGranted());
+        assertEquals(Collections.singletonList(CAMERA), mResults.get(0).getDeniedForever());
+    }
+
+    @Test
+    public void revokedPermissionIsAskedAgain() {
+        mDevice.setAnswer(CAMERA, SimulatedDevice.ANSWER_DENY_FOREVER);
+        mFlow.requestRuntime(1, bits(CAMERA), null);
+        mDevice.runPending();
+
+        mDevice.revoke(CAMERA);
+        mDevice.setAnswer(CAMERA, SimulatedDevice.ANSWER_GRANT);
+        mFlow.requestRuntime(1, bits(CAMERA), mResults::add);
+        mDevice.runPending();
+
+        assertEquals(2, mDevice.getDialogCount());
+        assertTrue(mResults.get(0).isAllGranted());
+    }
+
+    //endregion
+
+    //region Special
+
+    @Test
+    public void specialRequestsAreQueuedByType() {
+        mDevice.setSpecialAnswer(TYPE_WRITE_SETTINGS, true);
+        mFlow.requestSpecial(1, TYPE_WRITE_SETTINGS, id(WRITE_SETTINGS), mResults::add);
+        mFlow.requestSpecial(2, TYPE_DRAW_OVERLAYS, id(SYSTEM_ALERT_WINDOW), mResults::add);
+        // Same screen is running, it shares the answer
+        mFlow.requestSpecial(3, TYPE_WRITE_SETTINGS, id(WRITE_SETTINGS), mResults::add);
+        mDevice.runPending();
+
+        assertEquals(2, mDevice.getDialogCount());
+        assertEquals(Arrays.asList(1, 3, 2), requestCodes());
+        assertTrue(mResults.get(0).isAllGranted());
+        assertTrue(mResults.get(1).isAllGranted());
+        assertFalse(mResults.get(2).isAllGranted());
+        assertEquals(TYPE_DRAW_OVERLAYS, mResults.get(2).getType());
+        assertTrue(mFlow.isIdle());
+    }
+
+    @Test
+    public void nextSpecialScreenOpensFromResult() {
+        mDevice.setSpecialAnswer(TYPE_WRITE_SETTINGS, true);
+        mDevice.setSpecialAnswer(TYPE_DRAW_OVERLAYS, true);
+        mFlow.requestSpecial(1, TYPE_WRITE_SETTINGS, id(WRITE_SETTINGS), mResults::add);
+        mFlow.requestSpecial(1, TYPE_DRAW_OVERLAYS, id(SYSTEM_ALERT_WINDOW), mResults::add);
+
+        // Second screen is only queued once the first one is answered
+        assertEquals(2, mDevice.runPending());
+        assertEquals(2, mDevice.getDialogCount());
+        assertTrue(mResults.get(0).isAllGranted());
+        assertTrue(mResults.get(1).isAllGranted());
+    }
+
+    @Test
+    public void grantedSpecialOpensNoScreen() {
+        mDevice.setSpecialAnswer(TYPE_WRITE_SETTINGS, true);
+        mFlow.requestSpecial(1, TYPE_WRITE_SETTINGS, id(WRITE_SETTINGS), null);
+        mDevice.runPending();
+
+        mFlow.requestSpecial(1, TYPE_WRITE_SETTINGS, id(WRITE_SETTINGS), mResults::add);
+
+        assertFalse(mDevice.hasPending());
+        assertEquals(1, mDevice.getDialogCount());
+        assertTrue(mResults.get(0).isAllGranted());
+    }
+
+    //endregion
+
+    @NonNull
+    private PermissionBits bits(@NonNull String... permissions) {
+        PermissionBits bits = new PermissionBits(mDevice.getIndex().size());
+        for (String p : permissions) {
+            bits.add(id(p));
+        }
+        return bits;
+    }
+
+    private int id(@NonNull String permission) {
+        return mDevice.getIndex().indexOf(permission);
+    }
+
+    @NonNull
+    private List<Integer> requestCodes() {
+        List<Integer> codes = new ArrayList<>(mResults.size());
+        for (PermissionResult result : mResults) {
+            codes.add(result.getRequestCode());
+        }
+        return codes;
+    }
+}